@@ -0,0 +1,55 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what it costs to run a builtin from a typed line: parsing it, finding the
+ * builtin and running it in line. "cd ." is used because it writes nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    private static final MethodHandle EXECUTE_COMMAND =
+            Handles.staticMethod("Shell", "executeCommand", boolean.class, String.class, boolean.class);
+    private static final MethodHandle IS_BUILTIN =
+            Handles.staticMethod("Builtins", "isBuiltin", boolean.class, String.class);
+
+    /**
+     * The whole path from a typed line to a finished builtin (without recording it in the history).
+     */
+    @Benchmark
+    public boolean executeBuiltin() throws Throwable {
+        return (boolean) EXECUTE_COMMAND.invokeExact("cd .", false);
+    }
+
+    /**
+     * Just the lookup in the builtin registry.
+     */
+    @Benchmark
+    public boolean lookUpBuiltin() throws Throwable {
+        return (boolean) IS_BUILTIN.invokeExact("cd");
+    }
+
+    /**
+     * The lookup for a name that isn't a builtin, which every external command pays.
+     */
+    @Benchmark
+    public boolean lookUpMissing() throws Throwable {
+        return (boolean) IS_BUILTIN.invokeExact("grep-that-is-not-a-builtin");
+    }
+}
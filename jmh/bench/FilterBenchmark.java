@@ -0,0 +1,130 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures "cat log | grep error | wc -l" and "sort log | head" with the shell's builtin
+ * filters against the same pipelines of real programs (found on the PATH and run by their
+ * full path, so the builtins don't take their place).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    private static final MethodHandle EXECUTE_COMMAND =
+            Handles.staticMethod("Shell", "executeCommand", boolean.class, String.class, boolean.class);
+    private static final MethodHandle LAST_EXIT_STATUS = Handles.staticGetter("Shell", "lastExitStatus", int.class);
+
+    /**
+     * Where the output of every pipeline goes.
+     */
+    private static final String DISCARD = System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+
+    /**
+     * How many lines the log has.
+     */
+    @Param({"1000", "1000000"})
+    public int lines;
+
+    private Path log;
+    private String grepBuiltin;
+    private String grepPrograms;
+    private String sortBuiltin;
+    private String sortPrograms;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        log = Files.createTempFile("filter-bench", ".log");
+        try (Writer writer = Files.newBufferedWriter(log, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                writer.write((i * 7919L % 100_000) + (i % 20 == 0 ? " error: disk full\n" : " info: all good\n"));
+            }
+        }
+
+        String file = quote(log.toString());
+        grepBuiltin = "cat " + file + " | grep error | wc -l > " + DISCARD;
+        sortBuiltin = "sort -n " + file + " | head > " + DISCARD;
+        grepPrograms = quote(program("cat")) + " " + file + " | " + quote(program("grep")) + " error | "
+                + quote(program("wc")) + " -l > " + DISCARD;
+        sortPrograms = quote(program("sort")) + " -n " + file + " | " + quote(program("head")) + " > " + DISCARD;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+    }
+
+    @Benchmark
+    public int grepBuiltins() throws Throwable {
+        return run(grepBuiltin);
+    }
+
+    @Benchmark
+    public int grepPrograms() throws Throwable {
+        return run(grepPrograms);
+    }
+
+    @Benchmark
+    public int sortBuiltins() throws Throwable {
+        return run(sortBuiltin);
+    }
+
+    @Benchmark
+    public int sortPrograms() throws Throwable {
+        return run(sortPrograms);
+    }
+
+    private static int run(String line) throws Throwable {
+        boolean ran = (boolean) EXECUTE_COMMAND.invokeExact(line, false);
+        int status = (int) LAST_EXIT_STATUS.invokeExact();
+        if (!ran || status != 0) {
+            throw new IllegalStateException("\"" + line + "\" failed with status " + status);
+        }
+        return status;
+    }
+
+    /**
+     * Finds a program on the PATH.
+     * @param name The name of the program
+     * @return The full path of the program
+     */
+    private static String program(String name) {
+        for (String directory : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+            Path candidate = Paths.get(directory, name);
+            if (Files.isExecutable(candidate)) {
+                return candidate.toString();
+            }
+        }
+        throw new IllegalStateException(name + " isn't on the PATH, so there's nothing to compare with");
+    }
+
+    private static String quote(String word) {
+        // backslashes are left alone, since they're path separators on Windows
+        return "\"" + word.replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,97 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reaches the shell's classes from the benchmarks.
+ *
+ * The shell's classes live in the default package, which JMH won't generate code for and
+ * Java won't let other packages import, so they are found by name and called through
+ * method handles.
+ */
+final class Handles {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    /**
+     * A channel that throws away everything written to it.
+     */
+    private static final WritableByteChannel DISCARD = Channels.newChannel(OutputStream.nullOutputStream());
+
+    private static final MethodHandle NEW_BYTE_SINK = constructor("ByteSink", WritableByteChannel.class, boolean.class);
+
+    private Handles() {
+    }
+
+    /**
+     * Finds one of the shell's classes.
+     * @param name The name of the class
+     * @return The class
+     */
+    static Class<?> shellClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("the shell's classes aren't on the class path", e);
+        }
+    }
+
+    /**
+     * Finds a public static method of one of the shell's classes.
+     * @param className The class
+     * @param name The method
+     * @param returnType What the method returns
+     * @param parameterTypes What the method takes
+     * @return A handle for the method
+     */
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return LOOKUP.findStatic(shellClass(className), name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds a getter for a public static field of one of the shell's classes.
+     * @param className The class
+     * @param name The field
+     * @param type The type of the field
+     * @return A handle that reads the field
+     */
+    static MethodHandle staticGetter(String className, String name, Class<?> type) {
+        try {
+            return LOOKUP.findStaticGetter(shellClass(className), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds a public constructor of one of the shell's classes.
+     * @param className The class
+     * @param parameterTypes What the constructor takes
+     * @return A handle for the constructor
+     */
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            return LOOKUP.findConstructor(shellClass(className), MethodType.methodType(void.class, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Makes a ByteSink that throws its output away, so only producing the output is measured.
+     * @return The sink, which should be closed to give its buffer back
+     * @throws Throwable If the sink couldn't be made
+     */
+    static Closeable discardingSink() throws Throwable {
+        return (Closeable) NEW_BYTE_SINK.invoke(DISCARD, false);
+    }
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the history builtin and History.get over a large history file from earlier
+ * sessions.
+ *
+ * The history file is found through user.home, which is pointed at a temporary directory,
+ * so HISTFILE must not be set while this runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    private static final String[] COMMANDS = {
+        "list --sort=size --top 20",
+        "cd src",
+        "git commit -m \"fix the build\"",
+        "parallel -j 4 \"gzip {}\" ::: a b c d",
+        "du -h build",
+        "here",
+    };
+
+    /**
+     * How many commands the history file has.
+     */
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    private Path home;
+
+    private MethodHandle history;
+    private MethodHandle get;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        String histfile = System.getenv("HISTFILE");
+        if (histfile != null && !histfile.isEmpty()) {
+            throw new IllegalStateException("unset HISTFILE to run this benchmark");
+        }
+
+        home = Files.createTempDirectory("history-bench");
+        try (BufferedWriter writer = Files.newBufferedWriter(home.resolve(".shell_history"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write(COMMANDS[i % COMMANDS.length]);
+                // a rare command for searches to find
+                writer.write(i % 10_000 == 0 ? " # needle-" + i : " # " + i);
+                writer.write('\n');
+            }
+        }
+
+        System.setProperty("user.home", home.toString());
+        Handles.staticMethod("History", "open", void.class, boolean.class).invokeExact(true);
+        history = Handles.staticMethod("History", "history", int.class, String[].class, Handles.shellClass("ByteSink"));
+        get = Handles.staticMethod("History", "get", String.class, int.class);
+        // the file is mapped and indexed the first time it's used, which isn't what's measured here
+        String first = (String) get.invokeExact(1);
+        if (first == null) {
+            throw new IllegalStateException("the history file wasn't read");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(home.resolve(".shell_history"));
+        Files.deleteIfExists(home);
+    }
+
+    @Benchmark
+    public int lastTen() throws Throwable {
+        return run("history", "10");
+    }
+
+    @Benchmark
+    public int search() throws Throwable {
+        return run("history", "-s", "needle");
+    }
+
+    @Benchmark
+    public int prefix() throws Throwable {
+        return run("history", "-p", "git commit");
+    }
+
+    @Benchmark
+    public String randomEntry() throws Throwable {
+        return (String) get.invokeExact(ThreadLocalRandom.current().nextInt(1, entries + 1));
+    }
+
+    private int run(String... command) throws Throwable {
+        try (Closeable out = Handles.discardingSink()) {
+            return (int) history.invoke(command, out);
+        }
+    }
+}
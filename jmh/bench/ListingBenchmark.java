@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the list builtin on a made-up directory of files with different sizes and
+ * times, both read from disk every time and served from DirectoryCache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+    private static final MethodHandle CD = Handles.staticMethod("Shell", "cd", int.class, String[].class,
+            Handles.shellClass("ByteSink"));
+    private static final MethodHandle LIST = Handles.staticMethod("Listing", "list", int.class, String[].class,
+            Handles.shellClass("ByteSink"));
+    private static final MethodHandle DIRCACHE = Handles.staticMethod("DirectoryCache", "dircache", int.class,
+            String[].class, Handles.shellClass("ByteSink"));
+    private static final MethodHandle DELETE = Handles.staticMethod("TreeWalker", "delete",
+            Handles.shellClass("TreeWalker$Result"), Path.class);
+
+    /**
+     * How many files the directory has.
+     */
+    @Param({"1000", "100000"})
+    public int entries;
+
+    /**
+     * Whether the listing may come from DirectoryCache, or is read from disk every time.
+     */
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        directory = Files.createTempDirectory("list-bench");
+        byte[] contents = new byte[4096];
+        for (int i = 0; i < entries; i++) {
+            Path file = directory.resolve("file-" + i + (i % 3 == 0 ? ".java" : ".txt"));
+            Files.write(file, Arrays.copyOf(contents, i % contents.length));
+        }
+        int status;
+        try (Closeable out = Handles.discardingSink()) {
+            status = (int) CD.invoke(new String[]{"cd", directory.toString()}, out);
+        }
+        if (status != 0) {
+            throw new IOException("cannot cd to " + directory);
+        }
+        // only a full listing is remembered, so the cache is filled before anything is measured
+        list("list");
+    }
+
+    @Setup(Level.Invocation)
+    public void forget() throws Throwable {
+        if (!cached) {
+            try (Closeable out = Handles.discardingSink()) {
+                DIRCACHE.invoke(new String[]{"dircache", "-c"}, out);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        DELETE.invoke(directory);
+    }
+
+    @Benchmark
+    public int unsorted() throws Throwable {
+        return list("list");
+    }
+
+    @Benchmark
+    public int sortedBySize() throws Throwable {
+        return list("list", "--sort=size");
+    }
+
+    @Benchmark
+    public int newestTen() throws Throwable {
+        return list("list", "--sort=mtime", "--top", "10");
+    }
+
+    @Benchmark
+    public int matchingPattern() throws Throwable {
+        return list("list", "*.java");
+    }
+
+    private int list(String... command) throws Throwable {
+        try (Closeable out = Handles.discardingSink()) {
+            return (int) LIST.invoke(command, out);
+        }
+    }
+}
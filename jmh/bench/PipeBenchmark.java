@@ -0,0 +1,88 @@
+package bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures moving data between processes: TestOutput writes the given number of bytes
+ * into a pipe and TestInput reads them all, with the shell's pump threads in between.
+ *
+ * Starting two JVMs costs the same at every size, so "launchOnly" (TestOutput writing
+ * nothing) shows how much of the time is startup rather than throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PipeBenchmark {
+    private static final MethodHandle EXECUTE_COMMAND =
+            Handles.staticMethod("Shell", "executeCommand", boolean.class, String.class, boolean.class);
+    private static final MethodHandle LAST_EXIT_STATUS = Handles.staticGetter("Shell", "lastExitStatus", int.class);
+
+    /**
+     * The start of every command: the test programs are on the same class path as the shell.
+     */
+    private static final String JAVA = quote(System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java") + " -Xshare:auto -XX:TieredStopAtLevel=1 -cp "
+            + quote(System.getProperty("java.class.path"));
+
+    /**
+     * Where TestInput's report goes.
+     */
+    private static final String DISCARD = System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+
+    @State(Scope.Benchmark)
+    public static class Size {
+        /**
+         * How many bytes go down the pipe.
+         */
+        @Param({"1048576", "67108864", "268435456"})
+        public long bytes;
+
+        String line;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            line = JAVA + " TestOutput " + bytes + " | " + JAVA + " TestInput " + bytes + " > " + DISCARD;
+        }
+    }
+
+    @Benchmark
+    public int pipe(Size size) throws Throwable {
+        return run(size.line);
+    }
+
+    @Benchmark
+    public int launchOnly() throws Throwable {
+        return run(JAVA + " TestOutput 0 | " + JAVA + " TestInput 0 > " + DISCARD);
+    }
+
+    private static int run(String line) throws Throwable {
+        boolean ran = (boolean) EXECUTE_COMMAND.invokeExact(line, false);
+        int status = (int) LAST_EXIT_STATUS.invokeExact();
+        if (!ran || status != 0) {
+            throw new IllegalStateException("\"" + line + "\" failed with status " + status);
+        }
+        return status;
+    }
+
+    private static String quote(String word) {
+        // backslashes are left alone, since they're path separators on Windows
+        return "\"" + word.replace("\"", "\\\"") + "\"";
+    }
+}
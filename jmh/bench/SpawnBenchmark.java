@@ -0,0 +1,110 @@
+package bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many external commands the shell can start a second, starting them itself
+ * and through the launcher's helper process.
+ *
+ * The forked JVM has a 1 GiB heap that's touched up front, the way a shell that has been
+ * running for a while would; pass -jvmArgsAppend to try other sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class SpawnBenchmark {
+    private static final MethodHandle EXECUTE_COMMAND =
+            Handles.staticMethod("Shell", "executeCommand", boolean.class, String.class, boolean.class);
+    private static final MethodHandle LAST_EXIT_STATUS = Handles.staticGetter("Shell", "lastExitStatus", int.class);
+    private static final MethodHandle START_HELPER = Handles.staticMethod("Launcher", "startHelper", void.class);
+    private static final MethodHandle AWAIT_HELPER = Handles.staticMethod("Launcher", "awaitHelper", boolean.class, long.class);
+    private static final MethodHandle STOP_HELPER = Handles.staticMethod("Launcher", "stopHelper", void.class);
+
+    /**
+     * Whether commands are started by the launcher's helper.
+     */
+    @Param({"false", "true"})
+    public boolean launcher;
+
+    private String spawn;
+    private String pipe;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        // run by their full path, so nothing is looked up and no builtin takes their place
+        spawn = quote(program("true"));
+        pipe = quote(program("echo")) + " hello | " + quote(program("cat"));
+        if (launcher) {
+            START_HELPER.invokeExact();
+            if (!(boolean) AWAIT_HELPER.invokeExact(10_000L)) {
+                throw new IllegalStateException("the launcher's helper didn't start");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        STOP_HELPER.invokeExact();
+    }
+
+    @Benchmark
+    public int spawn() throws Throwable {
+        return run(spawn);
+    }
+
+    @Benchmark
+    public int pipe() throws Throwable {
+        return run(pipe);
+    }
+
+    private static int run(String line) throws Throwable {
+        boolean ran = (boolean) EXECUTE_COMMAND.invokeExact(line, false);
+        int status = (int) LAST_EXIT_STATUS.invokeExact();
+        if (!ran || status != 0) {
+            throw new IllegalStateException("\"" + line + "\" failed with status " + status);
+        }
+        return status;
+    }
+
+    /**
+     * Finds a program on the PATH.
+     * @param name The name of the program
+     * @return The full path of the program
+     */
+    private static String program(String name) {
+        for (String directory : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+            Path candidate = Paths.get(directory, name);
+            if (Files.isExecutable(candidate)) {
+                return candidate.toString();
+            }
+        }
+        throw new IllegalStateException(name + " isn't on the PATH, so there's nothing to compare with");
+    }
+
+    private static String quote(String word) {
+        // backslashes are left alone, since they're path separators on Windows
+        return "\"" + word.replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,132 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures starting the shell in a new JVM: how long until the first prompt appears, and how
+ * long a one-shot "-c" command takes from launch to exit, with and without the AppCDS archive
+ * made by "gradle cds".
+ *
+ * The shell is started from its jar (a class-data-sharing archive only covers classes loaded
+ * from jars), found through the shell.jar property or at build/libs/Shell.jar, with the
+ * archive next to it as Shell.jsa.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 30)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+    private static final String JAVA = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+    /**
+     * Whether the shell's classes come from the AppCDS archive.
+     */
+    @Param({"false", "true"})
+    public boolean appCds;
+
+    private List<String> launch;
+
+    /**
+     * The interactive shell started by firstPrompt, which is made to exit after the
+     * measurement.
+     */
+    private Process shell;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path jar = Paths.get(System.getProperty("shell.jar", "build/libs/Shell.jar")).toAbsolutePath();
+        if (!Files.isRegularFile(jar)) {
+            throw new IllegalStateException(jar + " doesn't exist, build it with \"gradle jar\"");
+        }
+
+        launch = new ArrayList<>();
+        launch.add(JAVA);
+        if (appCds) {
+            Path archive = jar.resolveSibling("Shell.jsa");
+            if (!Files.isRegularFile(archive)) {
+                throw new IllegalStateException(archive + " doesn't exist, make it with \"gradle cds\"");
+            }
+            // -Xshare:on fails instead of quietly running without the archive
+            launch.add("-Xshare:on");
+            launch.add("-XX:SharedArchiveFile=" + archive);
+        }
+        launch.add("-jar");
+        launch.add(jar.toString());
+    }
+
+    @TearDown(Level.Invocation)
+    public void exitShell() throws InterruptedException, IOException {
+        if (shell != null) {
+            // end of input is the same as exit
+            shell.getOutputStream().close();
+            shell.waitFor();
+            shell = null;
+        }
+    }
+
+    @Benchmark
+    public void firstPrompt() throws IOException {
+        shell = new ProcessBuilder(launch).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        InputStream in = shell.getInputStream();
+        // the prompt is "[directory]: "
+        int last = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (last == ']' && c == ':') {
+                return;
+            }
+            last = c;
+        }
+        throw new IllegalStateException("the shell exited before showing a prompt");
+    }
+
+    @Benchmark
+    public int oneShotHere() throws IOException, InterruptedException {
+        return run("here");
+    }
+
+    @Benchmark
+    public int oneShotList() throws IOException, InterruptedException {
+        return run("list --sort=size");
+    }
+
+    private int run(String command) throws IOException, InterruptedException {
+        List<String> line = new ArrayList<>(launch);
+        line.add("-c");
+        line.add(command);
+        Process process = new ProcessBuilder(line).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        // drain the output so the shell never blocks writing it
+        byte[] output = process.getInputStream().readAllBytes();
+        int status = process.waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("\"" + command + "\" failed with status " + status + ": "
+                    + new String(output, StandardCharsets.UTF_8));
+        }
+        return status;
+    }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the old regex splitCommand against Lexer and Parser, on a short command line
+ * and on long ones full of quotes and pipes.
+ *
+ * The shell's classes live in the default package, which JMH won't generate code for and
+ * Java won't let other packages import, so they are called through method handles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark {
+    private static final MethodHandle SPLIT_COMMAND;
+    private static final MethodHandle LEX;
+    private static final MethodHandle PARSE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            SPLIT_COMMAND = lookup.findStatic(Class.forName("Shell"), "splitCommand",
+                    MethodType.methodType(String[].class, String.class));
+            LEX = lookup.findStatic(Class.forName("Lexer"), "lex",
+                    MethodType.methodType(List.class, String.class));
+            PARSE = lookup.findStatic(Class.forName("Parser"), "parse",
+                    MethodType.methodType(Class.forName("CommandLine"), String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * How many times the repeated part of the command line appears (1 is a typical command).
+     */
+    @Param({"1", "16", "256"})
+    public int repeat;
+
+    private String line;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder builder = new StringBuilder("parallel -j 4");
+        for (int i = 0; i < repeat; i++) {
+            builder.append(" \"echo {} | tr a-z A-Z\" 'single quoted' plain-word-").append(i).append(" |");
+        }
+        builder.append(" cat");
+        line = builder.toString();
+    }
+
+    @Benchmark
+    public Object regexSplit() throws Throwable {
+        return (String[]) SPLIT_COMMAND.invokeExact(line);
+    }
+
+    @Benchmark
+    public Object lex() throws Throwable {
+        return (List<?>) LEX.invokeExact(line);
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return PARSE.invoke(line);
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A command that runs inside the shell itself, rather than as a child process.
+ *
+ * Builtins can appear anywhere in a pipeline: they read from the stage before them (if
+ * they read anything at all) and write to the stage after them.
+ */
+@FunctionalInterface
+public interface Builtin {
+    /**
+     * Runs the builtin.
+     * @param command The command to execute (including arguments)
+     * @param in Where the builtin's input comes from, only meaningful if readsInput() is true
+     * @param out Where the output of the builtin should be written
+     * @return The exit status of the builtin, 0 if it succeeded
+     * @throws IOException If the input or output of the builtin failed
+     */
+    int run(String[] command, ReadableByteChannel in, ByteSink out) throws IOException;
+
+    /**
+     * Whether this builtin reads its input. The input of a builtin that doesn't is closed
+     * straight away, so whatever is feeding it finds out that nobody is listening.
+     * @return True if the builtin reads its input
+     */
+    default boolean readsInput() {
+        return false;
+    }
+
+    /**
+     * Whether this builtin runs a command with these arguments. A builtin standing in for a
+     * program (like grep) leaves any option it doesn't understand to the program.
+     * @param command The command (including arguments)
+     * @return True if the builtin runs it, false if the program of the same name should
+     */
+    default boolean handles(String[] command) {
+        return true;
+    }
+
+    /**
+     * Whether this builtin runs a command that starts a pipeline typed at the prompt, where
+     * the shell's input is the user's typing. A builtin standing in for a program leaves a
+     * command that would read that input to the program, which knows how to read a terminal.
+     * @param command The command (including arguments)
+     * @return True if the builtin runs it, false if the program of the same name should
+     */
+    default boolean handlesAtPrompt(String[] command) {
+        return handles(command);
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The registry of every builtin, keyed by name.
+ *
+ * Looking a command up is a single hash lookup, no matter how many builtins there are.
+ * New builtins only need to be registered here to work everywhere, including in pipelines.
+ */
+public class Builtins {
+    /**
+     * Every builtin, keyed by the name it's run as.
+     */
+    private static final Map<String, Builtin> registry = new HashMap<>();
+
+    static {
+        register("exit", (command, in, out) -> {
+            Shell.exit(command, out);
+            return 0;
+        });
+        register("ptime", (command, in, out) -> Shell.ptime(command, out));
+        register("list", (command, in, out) -> Listing.list(command, out));
+        register("cd", (command, in, out) -> Shell.cd(command, out));
+        register("here", (command, in, out) -> {
+            out.println(Shell.here());
+            return 0;
+        });
+        register("mdir", (command, in, out) -> missingOperand(command, out) ? 1 : Shell.mdir(command, out));
+        register("rdir", (command, in, out) -> missingOperand(command, out) ? 1 : Shell.rdir(command, out));
+        register("du", (command, in, out) -> TreeWalker.du(command, out));
+        register("history", (command, in, out) -> History.history(command, out));
+        register("^", (command, in, out) -> missingOperand(command, out) ? 1 : Shell.executeHistoryCommand(command[1], out));
+        register("hash", (command, in, out) -> CommandHash.hash(command, out));
+        register("dircache", (command, in, out) -> DirectoryCache.dircache(command, out));
+        register("stats", (command, in, out) -> ShellMetrics.stats(command, out));
+        register("jobs", (command, in, out) -> JobTable.jobs(command, out));
+        register("wait", (command, in, out) -> JobTable.waitFor(command, out));
+        register("fg", (command, in, out) -> JobTable.fg(command, out));
+        register("kill", (command, in, out) -> JobTable.kill(command, out), JobTable::handlesKill);
+        registerFilter("parallel", Parallel::parallel);
+        registerFilter("cat", Filters::cat, Filters::handles, Filters::handlesAtPrompt);
+        registerFilter("grep", Filters::grep, Filters::handles, Filters::handlesAtPrompt);
+        registerFilter("head", Filters::head, Filters::handles, Filters::handlesAtPrompt);
+        registerFilter("sort", Filters::sort, Filters::handles, Filters::handlesAtPrompt);
+        registerFilter("wc", Filters::wc, Filters::handles, Filters::handlesAtPrompt);
+    }
+
+    /**
+     * Looks up a builtin by name.
+     * @param name The name of the command
+     * @return The builtin, or null if the command isn't a builtin
+     */
+    public static Builtin get(String name) {
+        return registry.get(name);
+    }
+
+    /**
+     * Looks up the builtin that runs a command, if there is one.
+     * @param command The command (including arguments)
+     * @return The builtin, or null if the command isn't a builtin or the builtin leaves these
+     * arguments to the program of the same name
+     */
+    public static Builtin forCommand(String[] command) {
+        return forCommand(command, false);
+    }
+
+    /**
+     * Looks up the builtin that runs a command, if there is one.
+     * @param command The command (including arguments)
+     * @param atPrompt Whether the command starts a pipeline typed at the prompt, and so would
+     * read the user's typing
+     * @return The builtin, or null if the command isn't a builtin or the builtin leaves these
+     * arguments to the program of the same name
+     */
+    public static Builtin forCommand(String[] command, boolean atPrompt) {
+        Builtin builtin = registry.get(command[0]);
+        if (builtin == null) {
+            return null;
+        }
+        return (atPrompt ? builtin.handlesAtPrompt(command) : builtin.handles(command)) ? builtin : null;
+    }
+
+    /**
+     * Determines whether a command name refers to one of the shell's builtins.
+     * @param name The name of the command
+     * @return True if the command is a builtin
+     */
+    public static boolean isBuiltin(String name) {
+        return registry.containsKey(name);
+    }
+
+    /**
+     * Returns the name of every builtin.
+     * @return The names, which can't be modified
+     */
+    public static Set<String> names() {
+        return Collections.unmodifiableSet(registry.keySet());
+    }
+
+    /**
+     * Adds a builtin that ignores its input.
+     * @param name The name the builtin is run as
+     * @param builtin The builtin
+     */
+    private static void register(String name, Builtin builtin) {
+        registry.put(name, builtin);
+    }
+
+    /**
+     * Adds a builtin that ignores its input and stands in for a program of the same name,
+     * which still runs the commands the builtin doesn't handle.
+     * @param name The name the builtin is run as
+     * @param builtin The builtin
+     * @param handles Whether the builtin runs a command with the given arguments
+     */
+    private static void register(String name, Builtin builtin, Predicate<String[]> handles) {
+        registry.put(name, new Builtin() {
+            @Override
+            public int run(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+                return builtin.run(command, in, out);
+            }
+
+            @Override
+            public boolean handles(String[] command) {
+                return handles.test(command);
+            }
+        });
+    }
+
+    /**
+     * Adds a builtin that reads its input, so it can sit in the middle of a pipeline.
+     * @param name The name the builtin is run as
+     * @param builtin The builtin
+     */
+    private static void registerFilter(String name, Builtin builtin) {
+        registerFilter(name, builtin, command -> true, command -> true);
+    }
+
+    /**
+     * Adds a builtin that reads its input and stands in for a program of the same name, which
+     * still runs the commands the builtin doesn't handle.
+     * @param name The name the builtin is run as
+     * @param builtin The builtin
+     * @param handles Whether the builtin runs a command with the given arguments
+     * @param handlesAtPrompt Whether the builtin runs a command with the given arguments when
+     * it starts a pipeline typed at the prompt
+     */
+    private static void registerFilter(String name, Builtin builtin, Predicate<String[]> handles,
+                                       Predicate<String[]> handlesAtPrompt) {
+        registry.put(name, new Builtin() {
+            @Override
+            public int run(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+                return builtin.run(command, in, out);
+            }
+
+            @Override
+            public boolean readsInput() {
+                return true;
+            }
+
+            @Override
+            public boolean handles(String[] command) {
+                return handles.test(command);
+            }
+
+            @Override
+            public boolean handlesAtPrompt(String[] command) {
+                return handlesAtPrompt.test(command);
+            }
+        });
+    }
+
+    /**
+     * Reports a builtin that was run without the operand it needs.
+     * @param command The command (including arguments)
+     * @param out Where the error should be written
+     * @return True if the operand is missing
+     * @throws IOException If the error couldn't be written
+     */
+    private static boolean missingOperand(String[] command, ByteSink out) throws IOException {
+        if (command.length == 1) {
+            out.println(command[0] + ": missing operand");
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moves raw bytes between the stages of a pipeline, without ever decoding them.
+ *
+ * The buffers used to do this are pooled, so a long-running shell only ever allocates as
+ * many of them as it has had pipes open at the same time.
+ */
+public class BytePump {
+    /**
+     * Size of every pooled buffer, big enough to drain a full OS pipe in one read.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Direct buffers, for copying between channels without going through the Java heap.
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Heap buffers, for copying between streams (which can only read into arrays anyway).
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Takes a buffer out of the pool, allocating a new one if the pool is empty.
+     * @param direct Whether a direct buffer (rather than a heap buffer) is wanted
+     * @return An empty buffer of BUFFER_SIZE bytes
+     */
+    public static ByteBuffer acquire(boolean direct) {
+        ByteBuffer buffer = (direct ? directBuffers : heapBuffers).poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool so it can be reused.
+     * @param buffer The buffer, which must not be used again by the caller
+     */
+    public static void release(ByteBuffer buffer) {
+        buffer.clear();
+        (buffer.isDirect() ? directBuffers : heapBuffers).offer(buffer);
+    }
+
+    /**
+     * Copies everything from one channel into another until the first one reaches EOF.
+     * @param in The channel to read from
+     * @param out The channel to write to
+     * @return The number of bytes copied
+     * @throws IOException If either channel fails, including when the reader goes away
+     */
+    public static long transfer(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = acquire(true);
+        long total = 0;
+        try {
+            while (in.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                total += out.write(buffer);
+                // keep whatever the write didn't take, it goes out with the next read
+                buffer.compact();
+            }
+        } finally {
+            release(buffer);
+        }
+
+        return total;
+    }
+
+    /**
+     * Copies everything from one stream into another until the first one reaches EOF.
+     * This is used for the pipes of external processes, which Java only exposes as streams.
+     * @param in The stream to read from
+     * @param out The stream to write to
+     * @return The number of bytes copied
+     * @throws IOException If either stream fails, including when the reader goes away
+     */
+    public static long transfer(InputStream in, OutputStream out) throws IOException {
+        ByteBuffer buffer = acquire(false);
+        byte[] bytes = buffer.array();
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(bytes)) >= 0) {
+                out.write(bytes, 0, read);
+                // flush straight away, so a slow producer doesn't leave data sitting in a buffer
+                out.flush();
+                total += read;
+            }
+        } finally {
+            release(buffer);
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Where builtins write their output. Text is encoded exactly once, straight into a pooled
+ * direct buffer, which is then handed to whatever channel the builtin's output goes to
+ * (the terminal, a file, or the next stage of a pipeline).
+ */
+public class ByteSink implements Closeable {
+    /**
+     * The shell's own standard output as a channel, shared by every sink that writes to it.
+     */
+    private static final WritableByteChannel stdoutChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    /**
+     * The line separator, already encoded.
+     */
+    private static final byte[] lineSeparator = System.lineSeparator().getBytes();
+
+    /**
+     * The channel the output is written to.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * Whether closing this sink should close the channel too.
+     */
+    private final boolean closeChannel;
+
+    /**
+     * The buffer output is collected in before being written to the channel.
+     */
+    private ByteBuffer buffer = BytePump.acquire(true);
+
+    /**
+     * Encoder for text that isn't plain ASCII, created the first time it's needed.
+     */
+    private CharsetEncoder encoder;
+
+    /**
+     * Creates a sink that writes into a channel.
+     * @param channel The channel to write to
+     * @param closeChannel Whether closing this sink should close the channel too
+     */
+    public ByteSink(WritableByteChannel channel, boolean closeChannel) {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+    }
+
+    /**
+     * Creates a sink that writes to the shell's standard output.
+     * @return A sink for standard output, closing it leaves standard output open
+     */
+    public static ByteSink stdout() {
+        return new ByteSink(stdoutChannel, false);
+    }
+
+    /**
+     * Writes text to the sink.
+     * @param text The text to write
+     * @return This sink
+     * @throws IOException If the underlying channel fails
+     */
+    public ByteSink print(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // only fall back to the encoder for the part that actually needs it
+                encode(CharBuffer.wrap(text, i, length));
+                return this;
+            }
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) c);
+        }
+
+        return this;
+    }
+
+    /**
+     * Writes text followed by a line separator to the sink.
+     * @param text The text to write
+     * @return This sink
+     * @throws IOException If the underlying channel fails
+     */
+    public ByteSink println(CharSequence text) throws IOException {
+        return print(text).println();
+    }
+
+    /**
+     * Writes a line separator to the sink.
+     * @return This sink
+     * @throws IOException If the underlying channel fails
+     */
+    public ByteSink println() throws IOException {
+        return write(lineSeparator, 0, lineSeparator.length);
+    }
+
+    /**
+     * Writes raw bytes to the sink.
+     * @param bytes The array holding the bytes
+     * @param offset Where the bytes start in the array
+     * @param length How many bytes to write
+     * @return This sink
+     * @throws IOException If the underlying channel fails
+     */
+    public ByteSink write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+
+        return this;
+    }
+
+    /**
+     * Writes raw bytes to the sink.
+     * @param bytes The bytes, which are all consumed
+     * @return This sink
+     * @throws IOException If the underlying channel fails
+     */
+    public ByteSink write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int chunk = Math.min(bytes.remaining(), buffer.remaining());
+            ByteBuffer slice = bytes.slice();
+            slice.limit(chunk);
+            buffer.put(slice);
+            bytes.position(bytes.position() + chunk);
+        }
+
+        return this;
+    }
+
+    /**
+     * Determines whether this sink writes to the shell's standard output, which a process
+     * can then write to directly rather than through the sink.
+     * @return True if the output goes to standard output
+     */
+    public boolean isStdout() {
+        return channel == stdoutChannel;
+    }
+
+    /**
+     * Returns a channel that writes into this sink, for output the builtin passes on from
+     * somewhere else (such as the command ^ runs again).
+     * @return The channel, which only flushes this sink when it's closed
+     */
+    public WritableByteChannel asChannel() {
+        return new WritableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer bytes) throws IOException {
+                int length = bytes.remaining();
+                ByteSink.this.write(bytes);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the sink still belongs to the builtin, which closes it itself
+                open = false;
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Writes everything that has been buffered so far to the channel.
+     * @throws IOException If the underlying channel fails
+     */
+    public void flush() throws IOException {
+        if (isStdout()) {
+            // anything printed through System.out has to come out before our output does
+            System.out.flush();
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes the sink and gives its buffer back to the pool.
+     * @throws IOException If the underlying channel fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            BytePump.release(buffer);
+            buffer = null;
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Encodes text with the platform charset, straight into the buffer.
+     * @param chars The text to encode
+     * @throws IOException If the underlying channel fails
+     */
+    private void encode(CharBuffer chars) throws IOException {
+        if (encoder == null) {
+            encoder = Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                flush();
+            } else {
+                break;
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers where on the PATH each command was found, like the hash table in bash.
+ *
+ * Without this, every launch walks the whole PATH looking for the executable. With it, a
+ * command that has been run before costs a single check that the file is still there.
+ * PATH can't change while the shell is running, so the table only needs emptying (hash -r)
+ * when a program is added to a directory earlier on PATH than the one it was found in.
+ */
+public class CommandHash {
+    /**
+     * Whether we're running on Windows, where executables are found through PATHEXT.
+     */
+    private static final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+
+    /**
+     * A single resolved command.
+     */
+    private static class Entry {
+        /**
+         * Where the command was found.
+         */
+        final Path path;
+
+        /**
+         * How many times the command has been looked up since it was found.
+         */
+        final AtomicLong hits = new AtomicLong();
+
+        Entry(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * The resolved commands, keyed by the name they were run as.
+     */
+    private static final Map<String, Entry> table = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the system's own search of PATH, when a process is started by name, finds the
+     * same executable resolve() does. Not on Windows, which looks in the current directory
+     * first, nor where PATH has an empty or relative entry, which mean the current directory.
+     */
+    private static final boolean searchesLikeUs = !isWindows && onlyAbsolute(System.getenv("PATH"));
+
+    /**
+     * Finds the executable for a command, using the table when possible.
+     *
+     * Names containing a path separator are paths, and are left alone (the child resolves a
+     * relative one against its own directory). Anything else is looked up in the table, then
+     * on PATH. The current directory is never searched, so a program that happens to be in
+     * it can't take the place of one on PATH.
+     *
+     * @param name The name of the command
+     * @return The absolute path of the executable, or null if it couldn't be found
+     */
+    public static String resolve(String name) {
+        if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+            return null;
+        }
+
+        Entry entry = table.get(name);
+        if (entry != null) {
+            if (Files.isExecutable(entry.path)) {
+                entry.hits.incrementAndGet();
+                return entry.path.toString();
+            }
+            // the executable was removed (or moved) since we found it
+            table.remove(name, entry);
+        }
+
+        Path found = searchPath(name);
+        if (found == null) {
+            return null;
+        }
+        entry = new Entry(found);
+        entry.hits.incrementAndGet();
+        table.put(name, entry);
+
+        return found.toString();
+    }
+
+    /**
+     * Determines whether a command found by resolve() can be started by its name, so the
+     * program sees the name it was run as, rather than by the path it was found at.
+     * @return True if starting it by name finds the same executable
+     */
+    public static boolean startsByName() {
+        return searchesLikeUs;
+    }
+
+    /**
+     * Empties the table.
+     */
+    public static void clear() {
+        table.clear();
+    }
+
+    /**
+     * Runs the hash builtin.
+     *
+     * With no arguments the table is printed. -r empties it, -d forgets the named commands,
+     * and any other names are looked up and added to the table.
+     *
+     * @param command The hash command (including arguments)
+     * @param out Where the output of the builtin should be written
+     * @return 0, or 1 if any of the named commands couldn't be found
+     * @throws IOException If the output couldn't be written
+     */
+    public static int hash(String[] command, ByteSink out) throws IOException {
+        int status = 0;
+        if (command.length == 1) {
+            if (table.isEmpty()) {
+                out.println("hash: hash table empty");
+                return 0;
+            }
+            out.println("hits    command");
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(table).entrySet()) {
+                out.println(String.format("%4d    %s", entry.getValue().hits.get(), entry.getValue().path));
+            }
+        } else if (command[1].equals("-r")) {
+            clear();
+        } else if (command[1].equals("-d")) {
+            for (int i = 2; i < command.length; i++) {
+                if (table.remove(command[i]) == null) {
+                    out.println("hash: " + command[i] + ": not found");
+                    status = 1;
+                }
+            }
+        } else {
+            for (int i = 1; i < command.length; i++) {
+                Path found = searchPath(command[i]);
+                if (found == null) {
+                    out.println("hash: " + command[i] + ": not found");
+                    status = 1;
+                } else {
+                    table.put(command[i], new Entry(found));
+                }
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Checks that every directory on PATH is an absolute path.
+     * @param path The value of PATH
+     * @return True if it has no empty or relative entries (and is set at all, since the
+     * system's default includes the current directory)
+     */
+    private static boolean onlyAbsolute(String path) {
+        if (path == null) {
+            return false;
+        }
+        for (String directory : path.split(File.pathSeparator, -1)) {
+            try {
+                if (directory.isEmpty() || !Path.of(directory).isAbsolute()) {
+                    return false;
+                }
+            } catch (InvalidPathException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Walks every directory on PATH looking for an executable.
+     * @param name The name of the command
+     * @return The first executable found, or null if there isn't one
+     */
+    private static Path searchPath(String name) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String directory : path.split(File.pathSeparator)) {
+            if (directory.isEmpty()) {
+                continue;
+            }
+            Path found = executable(directory, name);
+            if (found != null) {
+                return found.toAbsolutePath();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks a single directory for an executable.
+     * @param directory The directory to look in
+     * @param name The name of the command
+     * @return The executable, or null if the directory doesn't have one by that name
+     */
+    private static Path executable(String directory, String name) {
+        try {
+            if (isWindows) {
+                // "notepad" means notepad.exe (or .bat, .cmd, ...) on Windows
+                String extensions = System.getenv("PATHEXT");
+                for (String extension : (extensions == null ? ".COM;.EXE;.BAT;.CMD" : extensions).split(";")) {
+                    Path candidate = Path.of(directory, name + extension);
+                    if (Files.isRegularFile(candidate)) {
+                        return candidate;
+                    }
+                }
+            }
+
+            Path candidate = Path.of(directory, name);
+            if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                return candidate;
+            }
+        } catch (InvalidPathException e) {
+            // a name (or PATH entry) that isn't a valid path can't be an executable
+        }
+
+        return null;
+    }
+}
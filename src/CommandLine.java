@@ -0,0 +1,302 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed command line, as built by Parser.
+ *
+ * A command line is a list of and-or lists separated by ; or &, an and-or list is a chain
+ * of pipelines joined by && or ||, and a pipeline is a chain of simple commands joined by
+ * |. Each simple command has its words and any redirections that came with it.
+ *
+ * Nothing here changes once it's built, so the same command line can be run any number of
+ * times without parsing it again. Words with $? in them are only filled in when they run
+ * (see PipelineNode.expand).
+ */
+public class CommandLine {
+    /**
+     * How a pipeline is joined to the one before it in an and-or list.
+     */
+    public enum Connector {
+        AND_IF("&&"), OR_IF("||");
+
+        /**
+         * The operator as it's written.
+         */
+        public final String text;
+
+        Connector(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * A redirection of one of a command's streams to or from a file.
+     */
+    public static final class Redirect {
+        /**
+         * Which stream is redirected, and how.
+         */
+        public enum Kind {
+            INPUT("<"), OUTPUT(">"), APPEND(">>"), ERROR("2>"), ERROR_APPEND("2>>"),
+            /**
+             * 2>&1, which sends errors wherever the output goes (the target is always "1").
+             */
+            ERROR_TO_OUTPUT("2>&");
+
+            /**
+             * The operator as it's written.
+             */
+            public final String text;
+
+            Kind(String text) {
+                this.text = text;
+            }
+        }
+
+        /**
+         * Which stream is redirected, and how.
+         */
+        public final Kind kind;
+
+        /**
+         * The file the stream is redirected to or from.
+         */
+        public final String target;
+
+        Redirect(Kind kind, String target) {
+            this.kind = kind;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return kind.text + " " + quote(target);
+        }
+    }
+
+    /**
+     * A single command with its arguments and redirections.
+     */
+    public static final class SimpleCommand {
+        /**
+         * The command followed by its arguments.
+         */
+        public final String[] words;
+
+        /**
+         * Every redirection, in the order they were written.
+         */
+        public final List<Redirect> redirects;
+
+        /**
+         * Where $? appears in each word (null for a word without it), or null if no word has it.
+         */
+        final int[][] statusAt;
+
+        SimpleCommand(String[] words, List<Redirect> redirects) {
+            this(words, redirects, null);
+        }
+
+        SimpleCommand(String[] words, List<Redirect> redirects, int[][] statusAt) {
+            this.words = words;
+            this.redirects = Collections.unmodifiableList(redirects);
+            this.statusAt = statusAt;
+        }
+
+        /**
+         * Fills in $? wherever it appears in the words.
+         * @param status The exit status of the last command
+         * @return The command with the status in place of $?, or this command if it has no $?
+         */
+        SimpleCommand expand(int status) {
+            if (statusAt == null) {
+                return this;
+            }
+            String text = Integer.toString(status);
+            String[] expanded = words.clone();
+            for (int i = 0; i < words.length; i++) {
+                if (statusAt[i] == null) {
+                    continue;
+                }
+                StringBuilder word = new StringBuilder(words[i].length() + 8);
+                int copied = 0;
+                for (int position : statusAt[i]) {
+                    word.append(words[i], copied, position).append(text);
+                    copied = position + 2;
+                }
+                expanded[i] = word.append(words[i], copied, words[i].length()).toString();
+            }
+            return new SimpleCommand(expanded, redirects);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (String word : words) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(quote(word));
+            }
+            for (Redirect redirect : redirects) {
+                text.append(' ').append(redirect);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * A chain of commands joined by |.
+     */
+    public static final class PipelineNode {
+        /**
+         * The commands of the pipeline, in order.
+         */
+        public final List<SimpleCommand> commands;
+
+        PipelineNode(List<SimpleCommand> commands) {
+            this.commands = Collections.unmodifiableList(commands);
+        }
+
+        /**
+         * Determines whether any command in the pipeline redirects a stream.
+         * @return True if there is at least one redirection
+         */
+        public boolean hasRedirects() {
+            for (SimpleCommand command : commands) {
+                if (!command.redirects.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Fills in $? wherever it appears in the pipeline's commands, just before it runs.
+         * @param status The exit status of the last command
+         * @return The pipeline with the status in place of $?, or this pipeline if it has no $?
+         */
+        public PipelineNode expand(int status) {
+            List<SimpleCommand> expanded = null;
+            for (int i = 0; i < commands.size(); i++) {
+                SimpleCommand command = commands.get(i);
+                if (command.statusAt != null) {
+                    if (expanded == null) {
+                        expanded = new ArrayList<>(commands);
+                    }
+                    expanded.set(i, command.expand(status));
+                }
+            }
+            return expanded == null ? this : new PipelineNode(expanded);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (SimpleCommand command : commands) {
+                if (text.length() > 0) {
+                    text.append(" | ");
+                }
+                text.append(command);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * A chain of pipelines joined by && or ||, which may run in the background.
+     */
+    public static final class AndOr {
+        /**
+         * The pipelines, in order.
+         */
+        public final List<PipelineNode> pipelines;
+
+        /**
+         * How each pipeline after the first is joined to the one before it.
+         */
+        public final List<Connector> connectors;
+
+        /**
+         * Whether the list ended with &.
+         */
+        public final boolean background;
+
+        AndOr(List<PipelineNode> pipelines, List<Connector> connectors, boolean background) {
+            this.pipelines = Collections.unmodifiableList(pipelines);
+            this.connectors = Collections.unmodifiableList(connectors);
+            this.background = background;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(pipelines.get(0).toString());
+            for (int i = 1; i < pipelines.size(); i++) {
+                text.append(' ').append(connectors.get(i - 1).text).append(' ').append(pipelines.get(i));
+            }
+            if (background) {
+                text.append(" &");
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Every and-or list on the line, in order.
+     */
+    public final List<AndOr> lists;
+
+    CommandLine(List<AndOr> lists) {
+        this.lists = Collections.unmodifiableList(lists);
+    }
+
+    /**
+     * Determines whether there is nothing to run, such as for a blank line or a comment.
+     * @return True if the command line has no commands
+     */
+    public boolean isEmpty() {
+        return lists.isEmpty();
+    }
+
+    /**
+     * Returns the only pipeline on the line, if the line is nothing more than that.
+     * @return The pipeline, or null if the line has ;, &&, || or more than one list
+     */
+    public PipelineNode singlePipeline() {
+        if (lists.size() != 1 || lists.get(0).pipelines.size() != 1) {
+            return null;
+        }
+        return lists.get(0).pipelines.get(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (AndOr list : lists) {
+            if (text.length() > 0) {
+                // a list ending in & is already separated from the next one
+                text.append(text.charAt(text.length() - 1) == '&' ? " " : "; ");
+            }
+            text.append(list);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Quotes a word if it needs it to be read back as the same word.
+     * @param word The word
+     * @return The word, in double quotes if it's empty or contains spaces or operators
+     */
+    static String quote(String word) {
+        if (word.isEmpty()) {
+            return "\"\"";
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (" \t|&;<>#'\"\\".indexOf(word.charAt(i)) >= 0) {
+                return "\"" + word.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+            }
+        }
+        return word;
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Works out what a tab should fill in at the prompt.
+ *
+ * The first word of a command is completed from the builtins and every executable on the
+ * PATH, and any other word (or one with a / in it) is completed from the names in its
+ * directory. Both come from CompletionTrie, so a tab only costs a walk down the prefix.
+ *
+ * The PATH is scanned in the background, and kept up to date a directory at a time: only
+ * PATH directories that are new or have changed since they were scanned are read again.
+ * Directory names come from the listings DirectoryCache keeps, so completing in a
+ * directory that was just listed (or completed in) doesn't touch the disk.
+ */
+public class Completer {
+    /**
+     * Whether we're running on Windows, where executables are found through PATHEXT and a
+     * backslash isn't an escape.
+     */
+    private static final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+
+    /**
+     * The characters that have to be escaped (or quoted) to be part of a word.
+     */
+    private static final String SPECIAL = " \t|&;<>#'\"\\";
+
+    /**
+     * How many matches are shown at most when a word can't be completed any further.
+     */
+    public static final int MAX_CANDIDATES = 200;
+
+    /**
+     * How many directories have their names kept in a tree.
+     */
+    private static final int DIRECTORY_TRIES = 16;
+
+    /**
+     * What a tab does to the line.
+     */
+    public static final class Completion {
+        /**
+         * Where the word being completed starts in the line.
+         */
+        public final int start;
+
+        /**
+         * What the word (from start up to the cursor) is replaced with.
+         */
+        public final String text;
+
+        /**
+         * The names the word could be completed to, for showing when it can't be completed
+         * any further (at most MAX_CANDIDATES of them).
+         */
+        public final List<String> candidates;
+
+        /**
+         * How many names the word could be completed to in total.
+         */
+        public final int total;
+
+        Completion(int start, String text, List<String> candidates, int total) {
+            this.start = start;
+            this.text = text;
+            this.candidates = candidates;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Every command name: the builtins and the executables on the PATH. Locked while used.
+     */
+    private static final CompletionTrie commands = new CompletionTrie();
+
+    /**
+     * How many places (the builtins or a PATH directory) each command name comes from, so
+     * a name is only dropped once nothing provides it. Locked with commands.
+     */
+    private static final Map<String, Integer> providers = new HashMap<>();
+
+    /**
+     * What each scanned PATH directory was found to hold. Locked with commands.
+     */
+    private static final Map<String, ScannedDirectory> scanned = new HashMap<>();
+
+    /**
+     * Whether a scan of the PATH is running.
+     */
+    private static final AtomicBoolean scanning = new AtomicBoolean();
+
+    /**
+     * The names in a PATH directory, as of when it was scanned.
+     */
+    private static final class ScannedDirectory {
+        /**
+         * The modification time of the directory just before it was scanned.
+         */
+        final FileTime modified;
+
+        /**
+         * The command names it holds.
+         */
+        final List<String> names;
+
+        ScannedDirectory(FileTime modified, List<String> names) {
+            this.modified = modified;
+            this.names = names;
+        }
+    }
+
+    /**
+     * The names in a directory, made from a listing that DirectoryCache handed out.
+     */
+    private static final class DirectoryNames {
+        /**
+         * The listing the tree was made from, which stays the same object for as long as
+         * DirectoryCache thinks it's up to date.
+         */
+        final List<Listing.Entry> entries;
+
+        /**
+         * Every name, with a / after the names of directories.
+         */
+        final CompletionTrie trie = new CompletionTrie();
+
+        DirectoryNames(List<Listing.Entry> entries) {
+            this.entries = entries;
+            for (Listing.Entry entry : entries) {
+                trie.add(entry.isDirectory() ? entry.name + "/" : entry.name);
+            }
+        }
+    }
+
+    /**
+     * The names of the most recently completed directories, least recently used first.
+     */
+    private static final LinkedHashMap<Path, DirectoryNames> directories = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, DirectoryNames> eldest) {
+            return size() > DIRECTORY_TRIES;
+        }
+    };
+
+    static {
+        synchronized (commands) {
+            for (String name : Builtins.names()) {
+                provide(name);
+            }
+        }
+    }
+
+    /**
+     * Works out what a tab at the cursor should do.
+     * @param line The line being typed
+     * @param cursor Where the cursor is in the line
+     * @return What to replace the word at the cursor with, or null if nothing matches it
+     */
+    public static Completion complete(String line, int cursor) {
+        // the word starts after the last space or operator that isn't quoted or escaped
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < cursor; i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\\' && !isWindows) {
+                i++;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (SPECIAL.indexOf(c) >= 0) {
+                start = i + 1;
+            }
+        }
+
+        String word = line.substring(start, cursor);
+        String raw;
+        if (quote != 0) {
+            if (word.charAt(0) != quote || word.indexOf(quote, 1) >= 0) {
+                // only a word that's quoted as a whole can be completed
+                return null;
+            }
+            raw = word.substring(1);
+        } else if (word.indexOf('"') >= 0 || word.indexOf('\'') >= 0) {
+            return null;
+        } else {
+            raw = unescape(word);
+        }
+
+        String before = line.substring(0, start).stripTrailing();
+        boolean commandPosition = before.isEmpty() || "|;&".indexOf(before.charAt(before.length() - 1)) >= 0;
+
+        if (commandPosition && raw.indexOf('/') < 0 && raw.indexOf(File.separatorChar) < 0) {
+            refresh();
+            synchronized (commands) {
+                return complete(commands, start, "", raw, quote);
+            }
+        }
+
+        int slash = Math.max(raw.lastIndexOf('/'), raw.lastIndexOf(File.separatorChar));
+        String directoryText = raw.substring(0, slash + 1);
+        CompletionTrie names;
+        try {
+            names = names(Shell.cwd().resolve(directoryText.isEmpty() ? "." : directoryText).normalize());
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return names == null ? null : complete(names, start, directoryText, raw.substring(slash + 1), quote);
+    }
+
+    /**
+     * Completes a name from a tree.
+     * @param trie The names to complete from
+     * @param start Where the word starts in the line
+     * @param directoryText Everything in the word up to the name (the directory part of a path)
+     * @param prefix What has been typed of the name
+     * @param quote The quote the word opened with, or 0 if it isn't quoted
+     * @return What to replace the word with, or null if nothing matches it
+     */
+    private static Completion complete(CompletionTrie trie, int start, String directoryText, String prefix, char quote) {
+        int total = trie.count(prefix);
+        if (total == 0) {
+            return null;
+        }
+
+        String common = trie.commonPrefix(prefix);
+        if (total == 1) {
+            // the only match, so finish the word (a directory is left open for the next name)
+            boolean finished = !common.endsWith("/");
+            String text = word(directoryText + common, quote);
+            return new Completion(start, finished ? text + (quote != 0 ? String.valueOf(quote) : "") + " " : text,
+                    List.of(), 1);
+        }
+
+        List<String> candidates = common.length() > prefix.length() ? List.of() : trie.complete(prefix, MAX_CANDIDATES);
+        return new Completion(start, word(directoryText + common, quote), candidates, total);
+    }
+
+    /**
+     * Writes a name back as a word, escaping anything that would split it up.
+     * @param name The name
+     * @param quote The quote the word opened with, or 0 if it isn't quoted
+     * @return The word
+     */
+    private static String word(String name, char quote) {
+        if (quote != 0) {
+            return quote + name;
+        }
+
+        boolean special = false;
+        for (int i = 0; i < name.length() && !special; i++) {
+            special = SPECIAL.indexOf(name.charAt(i)) >= 0;
+        }
+        if (!special) {
+            return name;
+        } else if (isWindows) {
+            // a backslash is a path separator there, so the word is quoted instead
+            return "\"" + name;
+        }
+
+        StringBuilder escaped = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            if (SPECIAL.indexOf(name.charAt(i)) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(name.charAt(i));
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Removes the backslashes from a word as it was typed.
+     * @param word The word
+     * @return The word as the lexer will see it
+     */
+    private static String unescape(String word) {
+        if (isWindows || word.indexOf('\\') < 0) {
+            return word;
+        }
+        StringBuilder raw = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '\\' && i + 1 < word.length()) {
+                c = word.charAt(++i);
+            }
+            raw.append(c);
+        }
+        return raw.toString();
+    }
+
+    /**
+     * Returns the names in a directory.
+     * @param directory The directory
+     * @return The names (with a / after directories), or null if it couldn't be read
+     */
+    private static CompletionTrie names(Path directory) {
+        List<Listing.Entry> entries;
+        try {
+            entries = Listing.entries(directory);
+        } catch (IOException e) {
+            return null;
+        }
+
+        synchronized (directories) {
+            DirectoryNames names = directories.get(directory);
+            if (names == null || names.entries != entries) {
+                // the listing is new (or changed), so the tree is made again
+                names = new DirectoryNames(entries);
+                directories.put(directory, names);
+            }
+            return names.trie;
+        }
+    }
+
+    /**
+     * Brings the command names up to date with the PATH in the background, unless that's
+     * already happening. Completing carries on with the names found so far.
+     */
+    public static void refresh() {
+        if (!scanning.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                scanPath();
+            } finally {
+                scanning.set(false);
+            }
+        }, "path-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Scans the PATH directories that are new or have changed, and forgets the ones that
+     * aren't on the PATH anymore.
+     */
+    private static void scanPath() {
+        String path = System.getenv("PATH");
+        Set<String> onPath = new LinkedHashSet<>();
+        if (path != null) {
+            for (String directory : path.split(File.pathSeparator)) {
+                if (!directory.isEmpty()) {
+                    onPath.add(directory);
+                }
+            }
+        }
+
+        synchronized (commands) {
+            Iterator<Map.Entry<String, ScannedDirectory>> iterator = scanned.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ScannedDirectory> entry = iterator.next();
+                if (!onPath.contains(entry.getKey())) {
+                    entry.getValue().names.forEach(Completer::unprovide);
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (String directory : onPath) {
+            Path dir;
+            try {
+                dir = Paths.get(directory);
+            } catch (InvalidPathException e) {
+                continue;
+            }
+            FileTime modified = DirectoryCache.modified(dir);
+            ScannedDirectory old;
+            synchronized (commands) {
+                old = scanned.get(directory);
+            }
+            if (modified == null || old != null && modified.equals(old.modified)) {
+                continue;
+            }
+
+            ScannedDirectory scan = new ScannedDirectory(modified, executables(dir));
+            synchronized (commands) {
+                if (old != null) {
+                    old.names.forEach(Completer::unprovide);
+                }
+                scan.names.forEach(Completer::provide);
+                scanned.put(directory, scan);
+            }
+        }
+    }
+
+    /**
+     * Finds the names of every executable in a directory.
+     * @param directory The directory
+     * @return The names they can be run as
+     */
+    private static List<String> executables(Path directory) {
+        List<String> names = new ArrayList<>();
+        String extensions = isWindows ? System.getenv("PATHEXT") : null;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (isWindows) {
+                    // "notepad.exe" is run as "notepad"
+                    int dot = name.lastIndexOf('.');
+                    String extension = dot < 0 ? "" : name.substring(dot).toUpperCase();
+                    if (dot > 0 && (extensions == null ? ".COM;.EXE;.BAT;.CMD" : extensions.toUpperCase())
+                            .contains(extension) && Files.isRegularFile(entry)) {
+                        names.add(name.substring(0, dot));
+                    }
+                } else if (Files.isRegularFile(entry) && Files.isExecutable(entry)) {
+                    names.add(name);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // an unreadable (or missing) PATH directory just has no commands
+        }
+        return names;
+    }
+
+    /**
+     * Records one more place a command name comes from. The caller holds the commands lock.
+     * @param name The command name
+     */
+    private static void provide(String name) {
+        if (providers.merge(name, 1, Integer::sum) == 1) {
+            commands.add(name);
+        }
+    }
+
+    /**
+     * Records one less place a command name comes from. The caller holds the commands lock.
+     * @param name The command name
+     */
+    private static void unprovide(String name) {
+        Integer count = providers.computeIfPresent(name, (key, value) -> value == 1 ? null : value - 1);
+        if (count == null) {
+            commands.remove(name);
+        }
+    }
+}
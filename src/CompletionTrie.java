@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A prefix tree of names, for tab completion.
+ *
+ * Finding the names that start with a prefix only walks the prefix and then the names
+ * themselves, however many other names there are. Every node knows how many names are
+ * below it, so "how many matches are there" never needs a walk at all. Names can be added
+ * and removed one at a time, so the tree is kept up to date rather than rebuilt.
+ *
+ * Children are kept in arrays sorted by character, so matches come out in sorted order.
+ * The tree isn't thread-safe: callers that share one have to lock it.
+ */
+public class CompletionTrie {
+    /**
+     * A node for a single prefix.
+     */
+    private static final class Node {
+        /**
+         * The character leading to each child, sorted.
+         */
+        char[] keys = new char[0];
+
+        /**
+         * The child for each character in keys.
+         */
+        Node[] children = new Node[0];
+
+        /**
+         * Whether the prefix of this node is a name in its own right.
+         */
+        boolean terminal;
+
+        /**
+         * How many names start with the prefix of this node (including itself).
+         */
+        int count;
+
+        /**
+         * Finds the child for a character.
+         * @param c The character
+         * @return The child, or null if there isn't one
+         */
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * Finds the child for a character, adding it if there isn't one.
+         * @param c The character
+         * @return The child
+         */
+        Node addChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+
+            index = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            newKeys[index] = c;
+            newChildren[index] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[index];
+        }
+
+        /**
+         * Drops the child for a character.
+         * @param c The character
+         */
+        void removeChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index < 0) {
+                return;
+            }
+            char[] newKeys = new char[keys.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            keys = newKeys;
+            children = newChildren;
+        }
+    }
+
+    /**
+     * The node for the empty prefix.
+     */
+    private final Node root = new Node();
+
+    /**
+     * Adds a name.
+     * @param name The name
+     * @return True if the name wasn't already there
+     */
+    public boolean add(String name) {
+        if (contains(name)) {
+            return false;
+        }
+
+        Node node = root;
+        node.count++;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.addChild(name.charAt(i));
+            node.count++;
+        }
+        node.terminal = true;
+        return true;
+    }
+
+    /**
+     * Removes a name.
+     * @param name The name
+     * @return True if the name was there
+     */
+    public boolean remove(String name) {
+        if (!contains(name)) {
+            return false;
+        }
+
+        Node node = root;
+        node.count--;
+        for (int i = 0; i < name.length(); i++) {
+            Node child = node.child(name.charAt(i));
+            if (--child.count == 0) {
+                // nothing else goes through here, so the rest of the branch can go
+                node.removeChild(name.charAt(i));
+                return true;
+            }
+            node = child;
+        }
+        node.terminal = false;
+        return true;
+    }
+
+    /**
+     * Checks whether a name is in the tree.
+     * @param name The name
+     * @return True if it is
+     */
+    public boolean contains(String name) {
+        Node node = find(name);
+        return node != null && node.terminal;
+    }
+
+    /**
+     * Returns how many names there are.
+     * @return The number of names
+     */
+    public int size() {
+        return root.count;
+    }
+
+    /**
+     * Counts the names starting with a prefix.
+     * @param prefix The prefix
+     * @return The number of names
+     */
+    public int count(String prefix) {
+        Node node = find(prefix);
+        return node == null ? 0 : node.count;
+    }
+
+    /**
+     * Returns the names starting with a prefix, in sorted order.
+     * @param prefix The prefix
+     * @param limit How many names are wanted at most
+     * @return The names
+     */
+    public List<String> complete(String prefix, int limit) {
+        List<String> names = new ArrayList<>(Math.min(limit, 64));
+        Node node = find(prefix);
+        if (node != null) {
+            collect(node, new StringBuilder(prefix), limit, names);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the longest prefix shared by every name starting with a prefix, which is
+     * what a tab can safely fill in.
+     * @param prefix The prefix
+     * @return The longest shared prefix, or the prefix itself if nothing starts with it
+     */
+    public String commonPrefix(String prefix) {
+        Node node = find(prefix);
+        if (node == null) {
+            return prefix;
+        }
+
+        StringBuilder common = new StringBuilder(prefix);
+        while (!node.terminal && node.keys.length == 1) {
+            common.append(node.keys[0]);
+            node = node.children[0];
+        }
+        return common.toString();
+    }
+
+    /**
+     * Finds the node for a prefix.
+     * @param prefix The prefix
+     * @return The node, or null if no name starts with the prefix
+     */
+    private Node find(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Collects the names below a node, in sorted order.
+     * @param node The node
+     * @param prefix The prefix of the node, which is changed and put back
+     * @param limit How many names are wanted at most
+     * @param names Where the names go
+     */
+    private static void collect(Node node, StringBuilder prefix, int limit, List<String> names) {
+        if (names.size() >= limit) {
+            return;
+        }
+        if (node.terminal) {
+            names.add(prefix.toString());
+        }
+        for (int i = 0; i < node.keys.length && names.size() < limit; i++) {
+            prefix.append(node.keys[i]);
+            collect(node.children[i], prefix, limit, names);
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the listings of recently visited directories, so listing (and completing
+ * names in) the same directory again is served from memory.
+ *
+ * A cached listing is dropped as soon as a WatchService reports any change in its
+ * directory. Watch events arrive a little after the change, so a lookup also checks the
+ * directory's own modification time (one stat instead of one per entry), which catches
+ * entries being added, removed or renamed straight away. Nothing catches a file's size or
+ * time changing except the watch, so nothing is remembered where the file system has no
+ * watch service of its own and the JDK would only poll every few seconds (as on macOS).
+ * Only the most recently used directories are kept, and huge directories never are.
+ */
+public class DirectoryCache {
+    /**
+     * How many directories are remembered at most.
+     */
+    private static final int CAPACITY = 64;
+
+    /**
+     * The most entries a directory can have and still be remembered.
+     */
+    public static final int MAX_ENTRIES = 100_000;
+
+    /**
+     * The listing of a single directory, as it was when it was read.
+     */
+    private static final class Snapshot {
+        /**
+         * The modification time of the directory just before it was read.
+         */
+        final FileTime modified;
+
+        /**
+         * The entries of the directory, in directory order.
+         */
+        final List<Listing.Entry> entries;
+
+        /**
+         * The key watching the directory for changes, or null if it isn't watched.
+         */
+        WatchKey key;
+
+        Snapshot(FileTime modified, List<Listing.Entry> entries) {
+            this.modified = modified;
+            this.entries = Collections.unmodifiableList(entries);
+        }
+    }
+
+    /**
+     * Every remembered directory, from least to most recently used.
+     */
+    private static final LinkedHashMap<Path, Snapshot> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Snapshot> eldest) {
+            if (size() > CAPACITY) {
+                evictions.incrementAndGet();
+                cancel(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Lookups served from memory, lookups that had to go to disk, listings dropped because
+     * their directory changed, and listings dropped to make room.
+     */
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The watch service, made the first time a directory is remembered.
+     */
+    private static final class Watcher {
+        /**
+         * The watch service, or null if the file system doesn't have one (or it only polls).
+         */
+        static final WatchService SERVICE = start();
+
+        /**
+         * Creates the watch service and the thread that handles its events.
+         * @return The watch service, or null if there isn't one that's told about changes
+         */
+        private static WatchService start() {
+            WatchService service;
+            try {
+                service = Shell.cwd().getFileSystem().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                return null;
+            }
+            if (service.getClass().getName().endsWith("PollingWatchService")) {
+                // a poll every ten seconds or so would leave changed sizes showing that long
+                try {
+                    service.close();
+                } catch (IOException e) {
+                    // it was never used
+                }
+                return null;
+            }
+
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        WatchKey key = service.take();
+                        // whatever happened, the listing is out of date; put() registers under
+                        // the same lock, so a listing remembered since the event came in can't
+                        // be left holding the key cancelled here
+                        synchronized (cache) {
+                            invalidate((Path) key.watchable());
+                            key.cancel();
+                        }
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    // the shell is exiting
+                }
+            }, "directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            // left open, the kernel takes a good part of a second tearing the watches down after
+            // the JVM has gone, which is most of the time a one-shot "-c list" takes
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    service.close();
+                } catch (IOException e) {
+                    // the process is going away regardless
+                }
+            }));
+            return service;
+        }
+    }
+
+    /**
+     * Looks up the listing of a directory.
+     * @param directory The directory
+     * @return Its entries in directory order, or null if they aren't remembered (or are out of date)
+     */
+    public static List<Listing.Entry> get(Path directory) {
+        Snapshot snapshot;
+        synchronized (cache) {
+            snapshot = cache.get(directory);
+        }
+        if (snapshot == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        FileTime modified = modified(directory);
+        if (modified == null || !modified.equals(snapshot.modified)) {
+            // something was added, removed or renamed before the watcher could say so
+            invalidate(directory);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return snapshot.entries;
+    }
+
+    /**
+     * Returns the modification time of a directory, which should be taken just before it's
+     * read and passed to put() with the listing.
+     * @param directory The directory
+     * @return The modification time, or null if it couldn't be read
+     */
+    public static FileTime modified(Path directory) {
+        try {
+            return Files.readAttributes(directory, BasicFileAttributes.class).lastModifiedTime();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the listing of a directory, and starts watching it for changes. Nothing is
+     * remembered if the directory can't be watched.
+     * @param directory The directory
+     * @param modified The modification time of the directory from just before it was read
+     * @param entries Every entry of the directory, in directory order
+     */
+    public static void put(Path directory, FileTime modified, List<Listing.Entry> entries) {
+        WatchService service = Watcher.SERVICE;
+        if (service == null || modified == null || entries.size() > MAX_ENTRIES) {
+            // without a watch, changes to the entries themselves would go unnoticed
+            return;
+        }
+
+        Snapshot snapshot = new Snapshot(modified, entries);
+        synchronized (cache) {
+            try {
+                // a directory that's still watched gets its key back, so this has to happen under
+                // the lock the watcher cancels keys under
+                snapshot.key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException e) {
+                return;
+            }
+            Snapshot old = cache.put(directory, snapshot);
+            if (old != null && old.key != snapshot.key) {
+                cancel(old);
+            }
+        }
+    }
+
+    /**
+     * Forgets the listing of a directory.
+     * @param directory The directory
+     */
+    public static void invalidate(Path directory) {
+        Snapshot removed;
+        synchronized (cache) {
+            removed = cache.remove(directory);
+        }
+        if (removed != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops watching the directory of a listing that's being forgotten.
+     * @param snapshot The listing
+     */
+    private static void cancel(Snapshot snapshot) {
+        if (snapshot.key != null) {
+            snapshot.key.cancel();
+        }
+    }
+
+    /**
+     * Runs the dircache builtin, showing how well the cache is doing and which directories
+     * it holds (-c forgets every directory instead).
+     * @param command The dircache command
+     * @param out Where the statistics should be written
+     * @return 0, or 2 if the option wasn't recognised
+     * @throws IOException If the statistics couldn't be written
+     */
+    public static int dircache(String[] command, ByteSink out) throws IOException {
+        if (command.length > 1) {
+            if (!command[1].equals("-c")) {
+                out.println("dircache: usage: dircache [-c]");
+                return 2;
+            }
+            synchronized (cache) {
+                for (Snapshot snapshot : cache.values()) {
+                    cancel(snapshot);
+                }
+                cache.clear();
+            }
+            return 0;
+        }
+
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        out.println("Hits: " + hitCount + "  Misses: " + misses.get()
+                + "  Hit rate: " + (lookups == 0 ? 0 : hitCount * 100 / lookups) + "%");
+        out.println("Invalidated: " + invalidations.get() + "  Evicted: " + evictions.get());
+
+        List<Map.Entry<Path, Snapshot>> snapshots;
+        synchronized (cache) {
+            snapshots = new ArrayList<>(cache.entrySet());
+        }
+        // most recently used first
+        Collections.reverse(snapshots);
+        for (Map.Entry<Path, Snapshot> snapshot : snapshots) {
+            out.println(String.format("%8d  %s", snapshot.getValue().entries.size(), snapshot.getKey()));
+        }
+
+        return 0;
+    }
+}
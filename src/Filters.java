@@ -0,0 +1,1207 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The text filters cat, grep, head, sort and wc, run inside the shell so that a pipeline
+ * like "list | grep log | wc -l" doesn't start a single process.
+ *
+ * Each filter reads the files it's given (or its input, if it isn't given any) a line at a
+ * time without decoding it, and writes the lines it keeps exactly as they were. Only the
+ * common options are understood: a command with any other option is run by the program of
+ * the same name instead (see handles), so scripts written for the real tools keep working.
+ *
+ * sort keeps as much of its input in memory as an eighth of the heap (or -S) allows, and
+ * anything bigger is sorted in runs on disk which are merged at the end. Lines are compared
+ * byte by byte, like the real sort does with LC_ALL=C.
+ */
+public class Filters {
+    /**
+     * The options each filter understands, getopt style: a letter followed by : takes a value.
+     */
+    private static final Map<String, String> OPTIONS = Map.of(
+            "cat", "",
+            "grep", "cEFhHilnqv",
+            "head", "c:n:",
+            "sort", "fnruS:",
+            "wc", "clw");
+
+    /**
+     * How much is read from a file or pipe at once.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The newline that ends every line a filter writes.
+     */
+    private static final byte[] NEWLINE = {'\n'};
+
+    /**
+     * Roughly how many bytes of heap a line held by sort costs besides its contents (the
+     * array header, the reference to it and padding).
+     */
+    private static final int LINE_OVERHEAD = 32;
+
+    /**
+     * How many sorted runs are merged at once. With more runs than this, groups of them are
+     * merged into longer runs first.
+     */
+    private static final int MERGE_WIDTH = 64;
+
+    /**
+     * The character classes that can be used in brackets, like [[:digit:]].
+     */
+    private static final Set<String> CHARACTER_CLASSES = Set.of("alpha", "digit", "alnum", "upper", "lower",
+            "space", "blank", "punct", "print", "graph", "cntrl", "xdigit");
+
+    /**
+     * The options and operands of a filter command.
+     */
+    private static final class Options {
+        /**
+         * The value of every option given, "" for an option that doesn't take one.
+         */
+        final Map<Character, String> values = new HashMap<>();
+
+        /**
+         * Everything after the options, such as the pattern and the file names.
+         */
+        final List<String> operands = new ArrayList<>();
+
+        boolean has(char option) {
+            return values.containsKey(option);
+        }
+
+        /**
+         * Reads the options of a filter command.
+         * @param command The command (including arguments)
+         * @return The options, or null if there's one the filter doesn't understand
+         */
+        static Options parse(String[] command) {
+            String spec = OPTIONS.get(command[0]);
+            Options options = new Options();
+            int i = 1;
+            for (; i < command.length; i++) {
+                String word = command[i];
+                if (word.equals("--")) {
+                    i++;
+                    break;
+                }
+                if (!word.startsWith("-") || word.equals("-")) {
+                    break;
+                }
+                if (command[0].equals("head") && isNumber(word.substring(1))) {
+                    // the old way of writing head -n 5
+                    options.values.put('n', word.substring(1));
+                    continue;
+                }
+                for (int j = 1; j < word.length(); j++) {
+                    char option = word.charAt(j);
+                    int at = spec.indexOf(option);
+                    if (option == ':' || at < 0) {
+                        return null;
+                    }
+                    if (at + 1 < spec.length() && spec.charAt(at + 1) == ':') {
+                        // the value is the rest of the word, or else the next word
+                        String value = j + 1 < word.length() ? word.substring(j + 1) : ++i < command.length ? command[i] : null;
+                        if (value == null) {
+                            return null;
+                        }
+                        options.values.put(option, value);
+                        break;
+                    }
+                    options.values.put(option, "");
+                }
+            }
+
+            for (; i < command.length; i++) {
+                // the real tools also take options after the operands, so leave those to them
+                if (command[i].startsWith("-") && !command[i].equals("-")) {
+                    return null;
+                }
+                options.operands.add(command[i]);
+            }
+            return options;
+        }
+    }
+
+    /**
+     * Reads lines from a channel without decoding them. The current line is bytes[start, end),
+     * without its newline, and stays where it is until the next call to next().
+     */
+    private static final class LineReader {
+        final ReadableByteChannel channel;
+        byte[] bytes;
+        int start;
+        int end;
+
+        /**
+         * Whether the current line ended with a newline (only the last line of the input may not).
+         */
+        boolean terminated;
+
+        /**
+         * Where the line after the current one starts.
+         */
+        private int next;
+
+        /**
+         * How far the bytes have been searched for a newline.
+         */
+        private int scanned;
+
+        /**
+         * How many of the bytes hold input.
+         */
+        private int filled;
+
+        private boolean eof;
+
+        LineReader(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.bytes = new byte[BUFFER_SIZE];
+        }
+
+        /**
+         * Moves on to the next line.
+         * @return False if there are no more lines
+         * @throws IOException If the input couldn't be read
+         */
+        boolean next() throws IOException {
+            while (true) {
+                for (int i = scanned; i < filled; i++) {
+                    if (bytes[i] == '\n') {
+                        start = next;
+                        end = i;
+                        terminated = true;
+                        next = i + 1;
+                        scanned = next;
+                        return true;
+                    }
+                }
+                scanned = filled;
+
+                if (eof) {
+                    if (next < filled) {
+                        start = next;
+                        end = filled;
+                        terminated = false;
+                        next = filled;
+                        return true;
+                    }
+                    return false;
+                }
+
+                if (next > 0) {
+                    // move what there is of the next line to the front, to make room after it
+                    System.arraycopy(bytes, next, bytes, 0, filled - next);
+                    filled -= next;
+                    scanned -= next;
+                    next = 0;
+                } else if (filled == bytes.length) {
+                    // a single line as long as the buffer
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                int read = channel.read(ByteBuffer.wrap(bytes, filled, bytes.length - filled));
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * One of the things a filter reads: a file it was given, or its input.
+     */
+    @FunctionalInterface
+    private interface Input {
+        /**
+         * Reads a file (or the filter's input).
+         * @param name The name of the file, "-" for the filter's input
+         * @param channel The open file
+         * @return False if the rest of the files shouldn't be read
+         * @throws IOException If the file couldn't be read or the output couldn't be written
+         */
+        boolean read(String name, ReadableByteChannel channel) throws IOException;
+    }
+
+    /**
+     * Where sort sends its lines, either the output or a run on disk.
+     */
+    @FunctionalInterface
+    private interface LineSink {
+        void write(byte[] line) throws IOException;
+    }
+
+    /**
+     * Determines whether the builtin filters run a command, or leave it to the real program.
+     * @param command The command (including arguments)
+     * @return True unless the command has an option the builtin doesn't understand
+     */
+    public static boolean handles(String[] command) {
+        return Options.parse(command) != null;
+    }
+
+    /**
+     * Determines whether the builtin filters run a command that starts a pipeline typed at
+     * the prompt. Only one that reads nothing but the files it names is run, the real program
+     * reads the user's typing.
+     * @param command The command (including arguments)
+     * @return True if the builtin understands the command and it names files to read (none of them "-")
+     */
+    public static boolean handlesAtPrompt(String[] command) {
+        Options options = Options.parse(command);
+        if (options == null) {
+            return false;
+        }
+        List<String> files = options.operands;
+        if (command[0].equals("grep") && !files.isEmpty()) {
+            // the first operand is the pattern
+            files = files.subList(1, files.size());
+        }
+        return !files.isEmpty() && !files.contains("-");
+    }
+
+    /**
+     * Runs the cat builtin, which copies every file (or its input) to its output.
+     * @param command The cat command (including file names)
+     * @param in The input, read when there are no file names or one of them is "-"
+     * @param out Where the contents should be written
+     * @return 0, or 1 if a file couldn't be read
+     * @throws IOException If the input couldn't be read or the output couldn't be written
+     */
+    public static int cat(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+        Options options = Options.parse(command);
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean readAll = forEachInput("cat", options.operands, in, out, (name, channel) -> {
+            int read;
+            while ((read = channel.read(buffer.clear())) >= 0) {
+                out.write(bytes, 0, read);
+            }
+            return true;
+        });
+        return readAll ? 0 : 1;
+    }
+
+    /**
+     * Runs the grep builtin, which writes the lines that match a pattern.
+     *
+     * The pattern is a basic regular expression, an extended one with -E, or plain text with
+     * -F. -i ignores case, -v keeps the lines that don't match, -n numbers them, -c only
+     * counts them, -l only names the files with a match, -q writes nothing at all and stops
+     * at the first match, and -H (or -h) names (or doesn't name) the file on every line.
+     *
+     * @param command The grep command (including options, the pattern and file names)
+     * @param in The input, read when there are no file names or one of them is "-"
+     * @param out Where the lines should be written
+     * @return 0 if a line matched, 1 if none did, or 2 if something went wrong
+     * @throws IOException If the input couldn't be read or the output couldn't be written
+     */
+    public static int grep(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+        Options options = Options.parse(command);
+        if (options.operands.isEmpty()) {
+            out.println("grep: usage: grep [-cEFhHilnqv] pattern [file...]");
+            return 2;
+        }
+
+        Grep grep;
+        try {
+            grep = new Grep(options, out);
+        } catch (PatternSyntaxException e) {
+            out.println("grep: invalid pattern " + options.operands.get(0) + " (" + e.getDescription() + ")");
+            return 2;
+        }
+        List<String> files = options.operands.subList(1, options.operands.size());
+        grep.showNames = options.has('H') || (files.size() > 1 && !options.has('h'));
+
+        boolean readAll = forEachInput("grep", files, in, out, grep::read);
+        if (grep.matched > 0 && (readAll || grep.quiet)) {
+            return 0;
+        }
+        return readAll ? 1 : 2;
+    }
+
+    /**
+     * A single grep command, with its pattern ready to match.
+     */
+    private static final class Grep {
+        final ByteSink out;
+        final boolean invert;
+        final boolean numbered;
+        final boolean countOnly;
+        final boolean namesOnly;
+        final boolean quiet;
+        boolean showNames;
+
+        /**
+         * The text to look for when the pattern is plain text, otherwise null.
+         */
+        final byte[] text;
+
+        /**
+         * The pattern when it isn't plain text, otherwise null.
+         */
+        final Matcher matcher;
+
+        final Charset charset = Charset.defaultCharset();
+
+        /**
+         * How many lines have been written (or counted) across every file.
+         */
+        long matched;
+
+        Grep(Options options, ByteSink out) {
+            this.out = out;
+            invert = options.has('v');
+            numbered = options.has('n');
+            countOnly = options.has('c');
+            namesOnly = options.has('l');
+            quiet = options.has('q');
+
+            String pattern = options.operands.get(0);
+            boolean ignoreCase = options.has('i');
+            if (!ignoreCase && (options.has('F') || isLiteral(pattern))) {
+                // bytes can be searched for directly, without decoding every line
+                text = pattern.getBytes(charset);
+                matcher = null;
+            } else {
+                String regex = options.has('F') ? Pattern.quote(pattern) : toJava(pattern, !options.has('E'));
+                text = null;
+                matcher = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0).matcher("");
+            }
+        }
+
+        boolean read(String name, ReadableByteChannel channel) throws IOException {
+            String label = name.equals("-") ? "(standard input)" : name;
+            LineReader lines = new LineReader(channel);
+            long count = 0;
+            long number = 0;
+            while (lines.next()) {
+                number++;
+                if (matches(lines) == invert) {
+                    continue;
+                }
+                count++;
+                if (quiet) {
+                    matched++;
+                    return false;
+                } else if (namesOnly) {
+                    break;
+                } else if (countOnly) {
+                    continue;
+                }
+
+                if (showNames) {
+                    out.print(label).print(":");
+                }
+                if (numbered) {
+                    out.print(Long.toString(number)).print(":");
+                }
+                out.write(lines.bytes, lines.start, lines.end - lines.start).write(NEWLINE, 0, 1);
+            }
+
+            if (countOnly) {
+                if (showNames) {
+                    out.print(label).print(":");
+                }
+                out.println(Long.toString(count));
+            } else if (namesOnly && count > 0) {
+                out.println(label);
+            }
+            matched += count;
+            return true;
+        }
+
+        boolean matches(LineReader line) {
+            if (text != null) {
+                return contains(line.bytes, line.start, line.end, text);
+            }
+            return matcher.reset(new String(line.bytes, line.start, line.end - line.start, charset)).find();
+        }
+    }
+
+    /**
+     * Runs the head builtin, which writes the first lines (or bytes) of every file.
+     *
+     * "head -n 5" (or "head -5") writes five lines and "head -c 5" five bytes, and the
+     * default is ten lines. head stops reading as soon as it has written enough, so whatever
+     * is feeding it finds out it has stopped listening.
+     *
+     * @param command The head command (including options and file names)
+     * @param in The input, read when there are no file names or one of them is "-"
+     * @param out Where the lines should be written
+     * @return 0, or 1 if the count isn't a number or a file couldn't be read
+     * @throws IOException If the input couldn't be read or the output couldn't be written
+     */
+    public static int head(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+        Options options = Options.parse(command);
+        boolean bytes = options.has('c');
+        String value = options.values.getOrDefault(bytes ? 'c' : 'n', "10");
+        if (!isNumber(value)) {
+            out.println("head: invalid number of " + (bytes ? "bytes: " : "lines: ") + value);
+            return 1;
+        }
+        long limit;
+        try {
+            limit = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            limit = Long.MAX_VALUE;
+        }
+
+        long count = limit;
+        boolean headers = options.operands.size() > 1;
+        boolean[] first = {true};
+        boolean readAll = forEachInput("head", options.operands, in, out, (name, channel) -> {
+            if (headers) {
+                // like the real head, every file is introduced and separated by a blank line
+                if (!first[0]) {
+                    out.println();
+                }
+                out.println("==> " + (name.equals("-") ? "standard input" : name) + " <==");
+                first[0] = false;
+            }
+            if (bytes) {
+                byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, count))];
+                long left = count;
+                int read;
+                while (left > 0 && (read = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, left)))) >= 0) {
+                    out.write(buffer, 0, read);
+                    left -= read;
+                }
+                return true;
+            }
+            LineReader lines = new LineReader(channel);
+            for (long left = count; left > 0 && lines.next(); left--) {
+                out.write(lines.bytes, lines.start, lines.end - lines.start);
+                if (lines.terminated) {
+                    out.write(NEWLINE, 0, 1);
+                }
+            }
+            return true;
+        });
+        return readAll ? 0 : 1;
+    }
+
+    /**
+     * Runs the wc builtin, which counts the lines, words and bytes of every file.
+     *
+     * -l, -w and -c pick which counts are shown (all three by default), and with more than
+     * one file a total is added at the end.
+     *
+     * @param command The wc command (including options and file names)
+     * @param in The input, read when there are no file names or one of them is "-"
+     * @param out Where the counts should be written
+     * @return 0, or 1 if a file couldn't be read
+     * @throws IOException If the input couldn't be read or the output couldn't be written
+     */
+    public static int wc(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+        Options options = Options.parse(command);
+        boolean all = !options.has('l') && !options.has('w') && !options.has('c');
+        boolean[] shown = {all || options.has('l'), all || options.has('w'), all || options.has('c')};
+
+        List<long[]> rows = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        // the total size of the files that are files, and whether anything else was read
+        long[] fileSizes = {0};
+        boolean[] streamed = {false};
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean readAll = forEachInput("wc", options.operands, in, out, (name, channel) -> {
+            if (channel instanceof FileChannel) {
+                fileSizes[0] += ((FileChannel) channel).size();
+            } else {
+                streamed[0] = true;
+            }
+            long lines = 0;
+            long words = 0;
+            long size = 0;
+            boolean inWord = false;
+            int read;
+            while ((read = channel.read(buffer.clear())) >= 0) {
+                size += read;
+                if (!shown[1]) {
+                    for (int i = 0; i < read; i++) {
+                        if (bytes[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    continue;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = bytes[i];
+                    if (b == '\n') {
+                        lines++;
+                    }
+                    if (b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0b || b == 0x0c) {
+                        inWord = false;
+                    } else if (!inWord) {
+                        inWord = true;
+                        words++;
+                    }
+                }
+            }
+            rows.add(new long[]{lines, words, size});
+            names.add(options.operands.isEmpty() ? null : name);
+            return true;
+        });
+
+        if (rows.size() > 1) {
+            long[] total = new long[3];
+            for (long[] row : rows) {
+                for (int i = 0; i < 3; i++) {
+                    total[i] += row[i];
+                }
+            }
+            rows.add(total);
+            names.add("total");
+        }
+
+        // the columns are as wide as the real wc makes them: wide enough for the size of all
+        // the files together, and at least 7 when some of the input came through a pipe
+        int columns = (shown[0] ? 1 : 0) + (shown[1] ? 1 : 0) + (shown[2] ? 1 : 0);
+        int width = 1;
+        if (columns > 1 || rows.size() > 1) {
+            width = Math.max(Long.toString(fileSizes[0]).length(), streamed[0] ? 7 : 1);
+        }
+        StringBuilder line = new StringBuilder();
+        for (int r = 0; r < rows.size(); r++) {
+            line.setLength(0);
+            for (int i = 0; i < 3; i++) {
+                if (shown[i]) {
+                    String number = Long.toString(rows.get(r)[i]);
+                    if (line.length() > 0) {
+                        line.append(' ');
+                    }
+                    for (int pad = number.length(); pad < width; pad++) {
+                        line.append(' ');
+                    }
+                    line.append(number);
+                }
+            }
+            if (names.get(r) != null) {
+                line.append(' ').append(names.get(r));
+            }
+            out.println(line);
+        }
+        return readAll ? 0 : 1;
+    }
+
+    /**
+     * Runs the sort builtin, which writes the lines of every file in order.
+     *
+     * Lines are compared byte by byte, -f ignores the case of ASCII letters, -n compares the
+     * numbers the lines start with, -r reverses the order and -u only keeps the first of
+     * lines that compare equal. -S sets how much input is kept in memory before sorted runs
+     * are written to $TMPDIR (in KiB, or with a b, K, M or G suffix).
+     *
+     * @param command The sort command (including options and file names)
+     * @param in The input, read when there are no file names or one of them is "-"
+     * @param out Where the lines should be written
+     * @return 0, or 2 if a file couldn't be read (nothing is written then) or -S isn't a size
+     * @throws IOException If the input couldn't be read, a run couldn't be written to disk or
+     * the output couldn't be written
+     */
+    public static int sort(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+        Options options = Options.parse(command);
+        long budget = Math.max(1 << 20, Runtime.getRuntime().maxMemory() / 8);
+        if (options.has('S')) {
+            budget = size(options.values.get('S'));
+            if (budget <= 0) {
+                out.println("sort: invalid buffer size " + options.values.get('S'));
+                return 2;
+            }
+        }
+
+        Sorter sorter = new Sorter(options.has('n'), options.has('f'), options.has('r'), options.has('u'), budget);
+        try {
+            if (!forEachInput("sort", options.operands, in, out, sorter::read)) {
+                return 2;
+            }
+            sorter.finish(out);
+        } finally {
+            sorter.deleteRuns();
+        }
+        return 0;
+    }
+
+    /**
+     * A single sort command, holding the lines read so far and the runs written to disk.
+     */
+    private static final class Sorter {
+        /**
+         * The order lines are written in.
+         */
+        final Comparator<byte[]> order;
+
+        /**
+         * Which lines count as the same for -u, or null without -u.
+         */
+        final Comparator<byte[]> sameKey;
+
+        /**
+         * How many bytes of lines are held before they're written out as a run.
+         */
+        final long budget;
+
+        List<byte[]> lines = new ArrayList<>();
+        long held;
+        final List<Path> runs = new ArrayList<>();
+
+        Sorter(boolean numeric, boolean fold, boolean reverse, boolean unique, long budget) {
+            this.order = new LineOrder(numeric, fold, reverse, !unique);
+            this.sameKey = unique ? new LineOrder(numeric, fold, false, false) : null;
+            this.budget = budget;
+        }
+
+        boolean read(String name, ReadableByteChannel channel) throws IOException {
+            LineReader reader = new LineReader(channel);
+            while (reader.next()) {
+                byte[] line = Arrays.copyOfRange(reader.bytes, reader.start, reader.end);
+                lines.add(line);
+                held += line.length + LINE_OVERHEAD;
+                if (held >= budget) {
+                    spill();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sorts the lines held in memory and writes them to a new run on disk.
+         * @throws IOException If the run couldn't be written
+         */
+        void spill() throws IOException {
+            // the list is sorted stably, so -u keeps the line that came first
+            lines.sort(order);
+            Path run = createRun();
+            try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE)) {
+                LineSink sink = unique(line -> {
+                    stream.write(line);
+                    stream.write('\n');
+                });
+                for (byte[] line : lines) {
+                    sink.write(line);
+                }
+            }
+            lines = new ArrayList<>();
+            held = 0;
+        }
+
+        /**
+         * Writes every line read, in order.
+         * @param out Where the lines should be written
+         * @throws IOException If a run couldn't be read or the output couldn't be written
+         */
+        void finish(ByteSink out) throws IOException {
+            LineSink output = unique(line -> out.write(line, 0, line.length).write(NEWLINE, 0, 1));
+            if (runs.isEmpty()) {
+                // everything fit in memory
+                lines.sort(order);
+                for (byte[] line : lines) {
+                    output.write(line);
+                }
+                return;
+            }
+
+            if (!lines.isEmpty()) {
+                spill();
+            }
+            while (runs.size() > MERGE_WIDTH) {
+                List<Path> group = new ArrayList<>(runs.subList(0, MERGE_WIDTH));
+                Path merged = createRun();
+                try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(merged), BUFFER_SIZE)) {
+                    merge(group, unique(line -> {
+                        stream.write(line);
+                        stream.write('\n');
+                    }));
+                }
+                for (Path run : group) {
+                    Files.deleteIfExists(run);
+                }
+                // the longer run goes where the group was, so earlier input still comes first
+                runs.subList(0, MERGE_WIDTH).clear();
+                runs.remove(merged);
+                runs.add(0, merged);
+            }
+            merge(runs, output);
+        }
+
+        /**
+         * Merges sorted runs into one sorted stream of lines.
+         * @param inputs The runs, earliest input first
+         * @param sink Where the merged lines go
+         * @throws IOException If a run couldn't be read or the lines couldn't be written
+         */
+        void merge(List<Path> inputs, LineSink sink) throws IOException {
+            // equal lines come out in the order of the runs they're in, keeping the sort stable
+            PriorityQueue<Run> heads = new PriorityQueue<>(inputs.size(), (a, b) -> {
+                int difference = order.compare(a.line, b.line);
+                return difference != 0 ? difference : Integer.compare(a.index, b.index);
+            });
+            List<FileChannel> channels = new ArrayList<>(inputs.size());
+            try {
+                for (int i = 0; i < inputs.size(); i++) {
+                    FileChannel channel = FileChannel.open(inputs.get(i));
+                    channels.add(channel);
+                    Run head = new Run(i, new LineReader(channel));
+                    if (head.advance()) {
+                        heads.add(head);
+                    }
+                }
+                while (!heads.isEmpty()) {
+                    Run head = heads.poll();
+                    sink.write(head.line);
+                    if (head.advance()) {
+                        heads.add(head);
+                    }
+                }
+            } finally {
+                for (FileChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Wraps a sink so that with -u only the first of a group of equal lines reaches it.
+         * @param sink The sink
+         * @return The sink itself without -u, otherwise one that skips repeated lines
+         */
+        LineSink unique(LineSink sink) {
+            if (sameKey == null) {
+                return sink;
+            }
+            byte[][] last = new byte[1][];
+            return line -> {
+                if (last[0] == null || sameKey.compare(last[0], line) != 0) {
+                    sink.write(line);
+                    last[0] = line;
+                }
+            };
+        }
+
+        /**
+         * Creates an empty file for a sorted run, in $TMPDIR if it's set.
+         * @return The file
+         * @throws IOException If the file couldn't be created
+         */
+        Path createRun() throws IOException {
+            String directory = System.getenv("TMPDIR");
+            Path run = directory != null && !directory.isEmpty()
+                    ? Files.createTempFile(Paths.get(directory), "sort-", ".run")
+                    : Files.createTempFile("sort-", ".run");
+            runs.add(run);
+            return run;
+        }
+
+        /**
+         * Deletes every run that's still on disk.
+         */
+        void deleteRuns() {
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    // it's only a temporary file, and there's nobody to tell
+                }
+            }
+        }
+    }
+
+    /**
+     * A sorted run on disk being merged, and the line of it that's up next.
+     */
+    private static final class Run {
+        /**
+         * Where the run comes in the input, to keep equal lines in input order.
+         */
+        final int index;
+        final LineReader reader;
+        byte[] line;
+
+        Run(int index, LineReader reader) {
+            this.index = index;
+            this.reader = reader;
+        }
+
+        /**
+         * Moves on to the run's next line.
+         * @return False if the run has no more lines
+         * @throws IOException If the run couldn't be read
+         */
+        boolean advance() throws IOException {
+            if (!reader.next()) {
+                return false;
+            }
+            line = Arrays.copyOfRange(reader.bytes, reader.start, reader.end);
+            return true;
+        }
+    }
+
+    /**
+     * The order sort puts lines in. It holds scratch space for -n, so each sort needs its own.
+     */
+    private static final class LineOrder implements Comparator<byte[]> {
+        final boolean numeric;
+        final boolean fold;
+        final boolean reverse;
+
+        /**
+         * Whether lines whose keys are equal are still ordered by their bytes, so the output
+         * doesn't depend on the input order (which -u turns off).
+         */
+        final boolean lastResort;
+
+        /**
+         * The sign, integer digits and fraction digits of the numbers being compared.
+         */
+        private final int[] left = new int[5];
+        private final int[] right = new int[5];
+
+        LineOrder(boolean numeric, boolean fold, boolean reverse, boolean lastResort) {
+            this.numeric = numeric;
+            this.fold = fold;
+            this.reverse = reverse;
+            this.lastResort = lastResort;
+        }
+
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int difference;
+            if (numeric) {
+                difference = compareNumbers(a, b);
+            } else if (fold) {
+                difference = compareFolded(a, b);
+            } else {
+                difference = Arrays.compareUnsigned(a, b);
+            }
+            if (difference == 0 && lastResort && (numeric || fold)) {
+                difference = Arrays.compareUnsigned(a, b);
+            }
+            return reverse ? -difference : difference;
+        }
+
+        private static int compareFolded(byte[] a, byte[] b) {
+            int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                int x = a[i] >= 'a' && a[i] <= 'z' ? a[i] - 32 : a[i] & 0xff;
+                int y = b[i] >= 'a' && b[i] <= 'z' ? b[i] - 32 : b[i] & 0xff;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return a.length - b.length;
+        }
+
+        /**
+         * Compares the numbers two lines start with, digit by digit so any length works.
+         * Blanks before the number are skipped, and a line without one counts as 0.
+         */
+        private int compareNumbers(byte[] a, byte[] b) {
+            scanNumber(a, left);
+            scanNumber(b, right);
+            if (left[0] != right[0]) {
+                return Integer.compare(left[0], right[0]);
+            }
+            if (left[0] == 0) {
+                return 0;
+            }
+
+            int difference = (left[2] - left[1]) - (right[2] - right[1]);
+            for (int i = 0; difference == 0 && i < left[2] - left[1]; i++) {
+                difference = a[left[1] + i] - b[right[1] + i];
+            }
+            int fractions = Math.min(left[4] - left[3], right[4] - right[3]);
+            for (int i = 0; difference == 0 && i < fractions; i++) {
+                difference = a[left[3] + i] - b[right[3] + i];
+            }
+            if (difference == 0) {
+                // trailing zeros were dropped, so the longer fraction is the bigger one
+                difference = (left[4] - left[3]) - (right[4] - right[3]);
+            }
+            return left[0] < 0 ? -difference : difference;
+        }
+
+        /**
+         * Finds the number at the start of a line.
+         * @param line The line
+         * @param number Filled with the sign (-1, 0 or 1), where the integer digits start and
+         * end (without leading zeros) and where the fraction digits start and end (without
+         * trailing zeros)
+         */
+        private static void scanNumber(byte[] line, int[] number) {
+            int i = 0;
+            while (i < line.length && (line[i] == ' ' || line[i] == '\t')) {
+                i++;
+            }
+            boolean negative = i < line.length && line[i] == '-';
+            if (negative) {
+                i++;
+            }
+            int integerStart = i;
+            while (i < line.length && line[i] >= '0' && line[i] <= '9') {
+                i++;
+            }
+            int integerEnd = i;
+            int fractionStart = i;
+            int fractionEnd = i;
+            if (i < line.length && line[i] == '.') {
+                fractionStart = ++i;
+                while (i < line.length && line[i] >= '0' && line[i] <= '9') {
+                    i++;
+                }
+                fractionEnd = i;
+            }
+
+            while (integerStart < integerEnd && line[integerStart] == '0') {
+                integerStart++;
+            }
+            while (fractionEnd > fractionStart && line[fractionEnd - 1] == '0') {
+                fractionEnd--;
+            }
+            boolean zero = integerStart == integerEnd && fractionStart == fractionEnd;
+            number[0] = zero ? 0 : negative ? -1 : 1;
+            number[1] = integerStart;
+            number[2] = integerEnd;
+            number[3] = fractionStart;
+            number[4] = fractionEnd;
+        }
+    }
+
+    /**
+     * Runs a filter over every file it was given in turn, or over its input if it wasn't
+     * given any. A file that can't be opened is reported and skipped.
+     * @param name The name of the filter, for errors
+     * @param files The file names, where "-" stands for the input
+     * @param in The filter's input
+     * @param out Where errors should be written
+     * @param input What the filter does with each file
+     * @return True if every file could be opened
+     * @throws IOException If a file couldn't be read or the output couldn't be written
+     */
+    private static boolean forEachInput(String name, List<String> files, ReadableByteChannel in, ByteSink out, Input input) throws IOException {
+        if (files.isEmpty()) {
+            input.read("-", in);
+            return true;
+        }
+
+        boolean openedAll = true;
+        for (String file : files) {
+            if (file.equals("-")) {
+                if (!input.read(file, in)) {
+                    break;
+                }
+                continue;
+            }
+
+            FileChannel channel;
+            try {
+                Path path = Shell.cwd().resolve(file);
+                if (Files.isDirectory(path)) {
+                    out.println(name + ": " + file + ": Is a directory");
+                    openedAll = false;
+                    continue;
+                }
+                channel = FileChannel.open(path);
+            } catch (NoSuchFileException | InvalidPathException e) {
+                out.println(name + ": " + file + ": No such file or directory");
+                openedAll = false;
+                continue;
+            } catch (AccessDeniedException e) {
+                out.println(name + ": " + file + ": Permission denied");
+                openedAll = false;
+                continue;
+            }
+            try (channel) {
+                if (!input.read(file, channel)) {
+                    break;
+                }
+            }
+        }
+        return openedAll;
+    }
+
+    /**
+     * Looks for bytes in part of an array.
+     * @param bytes The array
+     * @param from Where to start looking
+     * @param to Where to stop looking
+     * @param text The bytes to look for
+     * @return True if the bytes were found
+     */
+    private static boolean contains(byte[] bytes, int from, int to, byte[] text) {
+        if (text.length == 0) {
+            return true;
+        }
+        byte first = text[0];
+        int last = to - text.length;
+        search:
+        for (int i = from; i <= last; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < text.length; j++) {
+                if (bytes[i + j] != text[j]) {
+                    continue search;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a pattern has nothing special in it, and so can be searched for as text.
+     * @param pattern The pattern
+     * @return True if every character of the pattern stands for itself
+     */
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("\\.[]*^$+?(){}|".indexOf(pattern.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turns a grep pattern into a Java regular expression.
+     *
+     * In a basic expression (grep without -E), ?, +, {, }, |, ( and ) are ordinary characters
+     * unless they follow a backslash, the other way round from Java. In both kinds a backslash
+     * inside brackets is an ordinary character, [:digit:] and the like are character classes,
+     * and \< and \> match the start and end of a word.
+     *
+     * @param pattern The pattern
+     * @param basic Whether it's a basic (rather than an extended) regular expression
+     * @return The Java regular expression
+     */
+    private static String toJava(String pattern, boolean basic) {
+        StringBuilder regex = new StringBuilder(pattern.length() + 8);
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                char next = pattern.charAt(++i);
+                if (next == '<' || next == '>') {
+                    regex.append("\\b");
+                } else if (basic && "?+{}|()".indexOf(next) >= 0) {
+                    regex.append(next);
+                } else {
+                    regex.append('\\').append(next);
+                }
+            } else if (basic && "?+{}|()".indexOf(c) >= 0) {
+                regex.append('\\').append(c);
+            } else if (c == '*' && basic && (regex.length() == 0 || regex.toString().equals("^"))) {
+                // a * with nothing before it stands for itself
+                regex.append("\\*");
+            } else if (c == '[') {
+                i = bracket(pattern, i, regex);
+            } else {
+                regex.append(c);
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Copies a bracket expression like [a-z] or [^[:space:]] into a Java regular expression.
+     * @param pattern The pattern
+     * @param open Where the [ is
+     * @param regex The Java regular expression being built
+     * @return Where the closing ] is
+     * @throws PatternSyntaxException If there isn't a closing ]
+     */
+    private static int bracket(String pattern, int open, StringBuilder regex) {
+        StringBuilder set = new StringBuilder("[");
+        int i = open + 1;
+        if (i < pattern.length() && pattern.charAt(i) == '^') {
+            set.append('^');
+            i++;
+        }
+        // a ] straight after the [ (or [^) is part of the set
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            set.append("\\]");
+            i++;
+        }
+        for (; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == ']') {
+                regex.append(set).append(']');
+                return i;
+            }
+            int classEnd = pattern.indexOf(":]", i + 2);
+            if (c == '[' && i + 1 < pattern.length() && pattern.charAt(i + 1) == ':' && classEnd > 0
+                    && CHARACTER_CLASSES.contains(pattern.substring(i + 2, classEnd))) {
+                String name = pattern.substring(i + 2, classEnd);
+                set.append("\\p{").append(name.equals("xdigit") ? "XDigit" : Character.toUpperCase(name.charAt(0)) + name.substring(1)).append('}');
+                i = classEnd + 1;
+            } else if (c == '\\' || c == '[' || c == '&') {
+                // special inside a Java set, but not inside a grep one
+                set.append('\\').append(c);
+            } else {
+                set.append(c);
+            }
+        }
+
+        throw new PatternSyntaxException("Unmatched [", pattern, open);
+    }
+
+    /**
+     * Checks whether a word is made of digits only.
+     * @param word The word
+     * @return True if it's a non-negative whole number
+     */
+    private static boolean isNumber(String word) {
+        if (word.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) < '0' || word.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a size given to sort -S.
+     * @param size The size, in KiB unless it ends in b, K, M or G
+     * @return The size in bytes, or -1 if it isn't a size
+     */
+    private static long size(String size) {
+        long unit = 1024;
+        String digits = size;
+        if (!size.isEmpty() && "bKMG".indexOf(size.charAt(size.length() - 1)) >= 0) {
+            unit = 1L << (10 * "bKMG".indexOf(size.charAt(size.length() - 1)));
+            digits = size.substring(0, size.length() - 1);
+        }
+        if (!isNumber(digits) || digits.length() > 12) {
+            return -1;
+        }
+        return Long.parseLong(digits) * unit;
+    }
+}
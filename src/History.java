@@ -0,0 +1,717 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The command history, numbered from 1 and kept between sessions.
+ *
+ * Commands typed at the prompt are appended to a history file ($HISTFILE, or
+ * ~/.shell_history) by a background thread, which syncs the file to disk once per batch
+ * rather than once per command. The commands of earlier sessions aren't read at startup:
+ * the file is memory mapped the first time history is needed, and the start of every
+ * entry is recorded so any entry can be found straight away.
+ *
+ * Only the most recent commands of this session ($HISTSIZE, 10000 by default) are held as
+ * strings. Older ones are read back from the file when they're asked for. Scripts and -c
+ * commands keep their history in memory only.
+ *
+ * A prefix search of earlier sessions goes through an index of the entries sorted by their
+ * first few bytes, built the first time it's needed. A substring search scans the mapped
+ * file instead, skipping ahead as far as it can (an index of every substring would be
+ * bigger than the history itself).
+ */
+public class History {
+    /**
+     * How many commands of this session are held in memory when $HISTSIZE isn't set.
+     */
+    private static final int DEFAULT_CAPACITY = 10_000;
+
+    /**
+     * The most of the history file that is mapped. Older entries than this are dropped.
+     */
+    private static final long MAX_MAPPED = 1L << 30;
+
+    /**
+     * A command waiting to be written to the history file.
+     */
+    private static final class Pending {
+        /**
+         * The position of the command in this session.
+         */
+        final int index;
+
+        /**
+         * The command.
+         */
+        final String text;
+
+        Pending(int index, String text) {
+            this.index = index;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The history file, or null if history isn't kept between sessions.
+     */
+    private static Path file;
+
+    /**
+     * The size of the history file when the shell started, which is where this session begins.
+     */
+    private static long startSize;
+
+    /**
+     * Whether the history file has been mapped yet.
+     */
+    private static boolean loaded;
+
+    /**
+     * The commands of earlier sessions, straight from the history file.
+     */
+    private static ByteBuffer mapped;
+
+    /**
+     * Where each command of earlier sessions starts in the mapped file.
+     */
+    private static int[] starts = new int[0];
+
+    /**
+     * The number of commands from earlier sessions.
+     */
+    private static int loadedCount;
+
+    /**
+     * The commands of earlier sessions sorted by their first four bytes, each as those bytes
+     * (high 32 bits, unsigned) followed by the command's index, or null until it's needed.
+     */
+    private static long[] prefixIndex;
+
+    /**
+     * The most recent commands of this session, by index modulo the capacity.
+     */
+    private static String[] ring = new String[DEFAULT_CAPACITY];
+
+    /**
+     * The number of commands in this session.
+     */
+    private static int sessionCount;
+
+    /**
+     * Where each command of this session was written in the history file, -1 until it has been.
+     */
+    private static long[] sessionOffsets = new long[0];
+
+    /**
+     * Commands that haven't been written to the history file yet, in order.
+     */
+    private static final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    /**
+     * Whether the writer is in the middle of writing a batch.
+     */
+    private static boolean writing;
+
+    /**
+     * The history file opened for appending, or null until it's first written.
+     */
+    private static FileChannel appender;
+
+    /**
+     * The history file opened for reading back old commands of this session, or null.
+     */
+    private static FileChannel reader;
+
+    /**
+     * Sets up the history. Nothing is read until the history is first used.
+     * @param persist Whether commands are kept in the history file
+     */
+    public static synchronized void open(boolean persist) {
+        ring = new String[capacity()];
+        if (!persist) {
+            return;
+        }
+
+        String name = System.getenv("HISTFILE");
+        file = name != null && !name.isEmpty() ? Paths.get(name) : Paths.get(System.getProperty("user.home"), ".shell_history");
+        try {
+            startSize = Files.size(file);
+        } catch (IOException e) {
+            // there's no history yet
+            startSize = 0;
+        }
+
+        Thread writer = new Thread(History::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // make sure the last few commands reach the file, however the shell exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+    }
+
+    /**
+     * Reads how many commands to hold in memory from $HISTSIZE.
+     * @return The capacity of the ring of recent commands
+     */
+    private static int capacity() {
+        try {
+            int capacity = Integer.parseInt(System.getenv("HISTSIZE"));
+            return capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        } catch (NumberFormatException e) {
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+    /**
+     * Adds a command to the end of the history.
+     * @param command The command, as typed
+     */
+    public static synchronized void add(String command) {
+        int index = sessionCount++;
+        ring[index % ring.length] = command;
+        if (file != null) {
+            if (index >= sessionOffsets.length) {
+                sessionOffsets = Arrays.copyOf(sessionOffsets, Math.max(16, sessionOffsets.length * 2));
+            }
+            sessionOffsets[index] = -1;
+            pending.add(new Pending(index, command));
+            History.class.notifyAll();
+        }
+    }
+
+    /**
+     * Forgets the most recent command (it's still kept in the file if it's been written).
+     */
+    public static synchronized void removeLast() {
+        if (sessionCount == 0) {
+            return;
+        }
+        sessionCount--;
+        ring[sessionCount % ring.length] = null;
+        if (!pending.isEmpty() && pending.peekLast().index == sessionCount) {
+            pending.pollLast();
+        }
+    }
+
+    /**
+     * Returns the number of the most recent command.
+     * @return The number of commands in the history
+     */
+    public static synchronized int size() {
+        load();
+        return loadedCount + sessionCount;
+    }
+
+    /**
+     * Looks up a command by its number.
+     * @param number The number of the command (starting at 1)
+     * @return The command, or null if there isn't one with that number
+     */
+    public static String get(int number) {
+        synchronized (History.class) {
+            load();
+        }
+        if (number >= 1 && number <= loadedCount) {
+            return new String(loadedEntry(number - 1), StandardCharsets.UTF_8);
+        }
+        return sessionEntry(number - loadedCount - 1);
+    }
+
+    /**
+     * Runs the history builtin.
+     *
+     * history lists every command, "history n" lists the last n, "history -s text" lists the
+     * commands containing the text and "history -p text" lists the ones starting with it.
+     *
+     * @param command The history command (including options)
+     * @param out Where the commands should be written
+     * @return 0, or 2 if the options weren't understood
+     * @throws IOException If the commands couldn't be written
+     */
+    public static int history(String[] command, ByteSink out) throws IOException {
+        int total = size();
+        if (command.length == 1) {
+            out.println("-- Command History --");
+            printRange(1, total, out);
+        } else if (command.length == 2 && command[1].matches("\\d+")) {
+            int count = (int) Math.min(Long.parseLong(command[1]), total);
+            printRange(total - count + 1, total, out);
+        } else if (command.length >= 3 && (command[1].equals("-s") || command[1].equals("-p"))) {
+            // the text may be given as several words, like the command it's looking for
+            String text = String.join(" ", Arrays.copyOfRange(command, 2, command.length));
+            search(text, command[1].equals("-p"), total, out);
+        } else {
+            out.println("history: usage: history [n | -s text | -p text]");
+            return 2;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Writes a range of commands with their numbers.
+     * @param first The number of the first command
+     * @param last The number of the last command
+     * @param out Where the commands should be written
+     * @throws IOException If the commands couldn't be written
+     */
+    private static void printRange(int first, int last, ByteSink out) throws IOException {
+        for (int number = first; number <= last; number++) {
+            if (number <= loadedCount) {
+                // straight from the file to the output, without making a string
+                printEntry(number, loadedEntry(number - 1), out);
+            } else {
+                String entry = sessionEntry(number - loadedCount - 1);
+                if (entry != null) {
+                    out.print(Integer.toString(number)).print(" : ").println(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the commands that contain some text, or start with it.
+     * @param text The text to look for
+     * @param prefix Whether the text must be at the start of the command
+     * @param total The number of commands in the history
+     * @param out Where the commands should be written
+     * @throws IOException If the commands couldn't be written
+     */
+    private static void search(String text, boolean prefix, int total, ByteSink out) throws IOException {
+        byte[] needle = text.getBytes(StandardCharsets.UTF_8);
+        if (prefix) {
+            searchPrefix(needle, out);
+        } else {
+            searchLoaded(needle, out);
+        }
+
+        for (int number = loadedCount + 1; number <= total; number++) {
+            String entry = sessionEntry(number - loadedCount - 1);
+            if (entry != null && (prefix ? entry.startsWith(text) : entry.contains(text))) {
+                out.print(Integer.toString(number)).print(" : ").println(entry);
+            }
+        }
+    }
+
+    /**
+     * Writes every command of earlier sessions that contains some bytes, searching the whole
+     * mapped file at once (Boyer-Moore-Horspool) instead of entry by entry.
+     * @param needle The bytes to look for
+     * @param out Where the commands should be written
+     * @throws IOException If the commands couldn't be written
+     */
+    private static void searchLoaded(byte[] needle, ByteSink out) throws IOException {
+        if (loadedCount == 0) {
+            return;
+        }
+        int end = mapped.limit();
+        if (needle.length == 0) {
+            printRange(1, loadedCount, out);
+            return;
+        }
+
+        // how far the search can move on when the last byte it looked at is each value
+        int[] skip = new int[256];
+        Arrays.fill(skip, needle.length);
+        for (int i = 0; i < needle.length - 1; i++) {
+            skip[needle[i] & 0xff] = needle.length - 1 - i;
+        }
+
+        int last = needle.length - 1;
+        int position = starts[0];
+        while (position + last < end) {
+            int i = last;
+            while (i >= 0 && mapped.get(position + i) == needle[i]) {
+                i--;
+            }
+            if (i >= 0) {
+                position += skip[mapped.get(position + last) & 0xff];
+                continue;
+            }
+
+            // a match, so write its entry and carry on from the next one
+            int entry = Arrays.binarySearch(starts, 0, loadedCount, position);
+            if (entry < 0) {
+                entry = -entry - 2;
+            }
+            printEntry(entry + 1, loadedEntry(entry), out);
+            if (entry + 1 >= loadedCount) {
+                break;
+            }
+            position = starts[entry + 1];
+        }
+    }
+
+    /**
+     * Writes every command of earlier sessions that starts with some bytes, looking only at
+     * the ones the prefix index says start with the same (first four) bytes.
+     * @param needle The bytes to look for
+     * @param out Where the commands should be written
+     * @throws IOException If the commands couldn't be written
+     */
+    private static void searchPrefix(byte[] needle, ByteSink out) throws IOException {
+        if (loadedCount == 0) {
+            return;
+        }
+        long[] index = prefixIndex();
+
+        // every key starting with the needle's first bytes, whatever the bytes after them
+        long low = 0;
+        long high = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = i < needle.length ? needle[i] & 0xff : -1;
+            low = low << 8 | (b < 0 ? 0x00 : b);
+            high = high << 8 | (b < 0 ? 0xff : b);
+        }
+        int from = lowerBound(index, low << 31);
+        int to = high == 0xffffffffL ? index.length : lowerBound(index, (high + 1) << 31);
+
+        // the index is in key order, but the commands are written in history order
+        int[] matches = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int entry = (int) (index[i] & Integer.MAX_VALUE);
+            if (startsWith(starts[entry], needle)) {
+                matches[count++] = entry;
+            }
+        }
+        Arrays.sort(matches, 0, count);
+        for (int i = 0; i < count; i++) {
+            printEntry(matches[i] + 1, loadedEntry(matches[i]), out);
+        }
+    }
+
+    /**
+     * Returns the prefix index of the commands of earlier sessions, building it if it's the
+     * first time.
+     * @return The index, sorted
+     */
+    private static synchronized long[] prefixIndex() {
+        if (prefixIndex == null) {
+            int end = mapped.limit();
+            long[] index = new long[loadedCount];
+            for (int i = 0; i < loadedCount; i++) {
+                // the first four bytes of the command, padded with zeroes if it's shorter
+                long key = 0;
+                boolean ended = false;
+                for (int j = 0; j < 4; j++) {
+                    int position = starts[i] + j;
+                    int b = ended || position >= end ? 0 : mapped.get(position) & 0xff;
+                    if (b == '\n') {
+                        ended = true;
+                        b = 0;
+                    }
+                    key = key << 8 | b;
+                }
+                index[i] = key << 31 | i;
+            }
+            Arrays.sort(index);
+            prefixIndex = index;
+        }
+        return prefixIndex;
+    }
+
+    /**
+     * Finds the first position in a sorted array that isn't less than a value.
+     * @param array The sorted array
+     * @param value The value
+     * @return The position, or the length of the array if every element is less
+     */
+    private static int lowerBound(long[] array, long value) {
+        int low = 0;
+        int high = array.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (array[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Checks whether a command of an earlier session starts with some bytes.
+     * @param start Where the command starts in the mapped file
+     * @param needle The bytes to look for
+     * @return True if the command starts with the bytes
+     */
+    private static boolean startsWith(int start, byte[] needle) {
+        if (start + needle.length > mapped.limit()) {
+            return false;
+        }
+        for (int i = 0; i < needle.length; i++) {
+            byte b = mapped.get(start + i);
+            if (b != needle[i] || b == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a single command with its number.
+     * @param number The number of the command
+     * @param entry The command, in UTF-8
+     * @param out Where the command should be written
+     * @throws IOException If the command couldn't be written
+     */
+    private static void printEntry(int number, byte[] entry, ByteSink out) throws IOException {
+        out.print(Integer.toString(number)).print(" : ");
+        out.write(entry, 0, entry.length);
+        out.println();
+    }
+
+    /**
+     * Reads a command of an earlier session from the mapped file.
+     * @param index The position of the command among the earlier sessions
+     * @return The command, in UTF-8
+     */
+    private static byte[] loadedEntry(int index) {
+        int start = starts[index];
+        int end = index + 1 < loadedCount ? starts[index + 1] - 1 : mapped.limit();
+        if (end > start && mapped.get(end - 1) == '\n') {
+            end--;
+        }
+        byte[] entry = new byte[end - start];
+        mapped.get(start, entry);
+        return entry;
+    }
+
+    /**
+     * Looks up a command of this session, in memory if it's recent enough or in the file.
+     * @param index The position of the command in this session
+     * @return The command, or null if there isn't one (or it's been lost)
+     */
+    private static String sessionEntry(int index) {
+        long offset;
+        synchronized (History.class) {
+            if (index < 0 || index >= sessionCount) {
+                return null;
+            }
+            if (index >= sessionCount - ring.length) {
+                return ring[index % ring.length];
+            }
+            if (file == null) {
+                // without a history file, old commands are simply gone
+                return null;
+            }
+            for (Pending entry : pending) {
+                if (entry.index == index) {
+                    return entry.text;
+                }
+            }
+            offset = sessionOffsets[index];
+        }
+
+        return offset < 0 ? null : readLine(offset);
+    }
+
+    /**
+     * Reads a line of the history file.
+     * @param offset Where the line starts in the file
+     * @return The line, or null if it couldn't be read
+     */
+    private static synchronized String readLine(long offset) {
+        try {
+            if (reader == null) {
+                reader = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = offset;
+            while (reader.read(buffer, position) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        return line.toString(StandardCharsets.UTF_8);
+                    }
+                    line.write(b);
+                }
+                position += buffer.position();
+                buffer.clear();
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps the history file and finds where every command in it starts, the first time
+     * the history is needed.
+     */
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (file == null || startSize == 0) {
+            return;
+        }
+
+        long from = Math.max(0, startSize - MAX_MAPPED);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, startSize - from);
+            int end = buffer.limit();
+            int position = 0;
+            if (from > 0) {
+                // the mapping starts in the middle of a command, so skip to the next one
+                while (position < end && buffer.get(position++) != '\n') {
+                    // keep looking
+                }
+            }
+
+            int[] found = new int[1024];
+            int count = 0;
+            while (position < end) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = position;
+                while (position < end && buffer.get(position++) != '\n') {
+                    // keep looking
+                }
+            }
+
+            mapped = buffer;
+            starts = found;
+            loadedCount = count;
+        } catch (IOException e) {
+            System.err.println("Error: cannot read history file " + file + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Writes new commands to the history file as they come in, syncing once per batch.
+     */
+    private static void writeLoop() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (History.class) {
+                while (pending.isEmpty()) {
+                    try {
+                        History.class.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                writing = true;
+            }
+
+            long[] offsets = write(batch);
+
+            synchronized (History.class) {
+                if (offsets != null) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        int index = batch.get(i).index;
+                        if (index < sessionCount) {
+                            sessionOffsets[index] = offsets[i];
+                        }
+                    }
+                }
+                writing = false;
+                History.class.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Appends a batch of commands to the history file and syncs it to disk.
+     * @param batch The commands, in order
+     * @return Where each command was written in the file, or null if the write failed
+     */
+    private static long[] write(List<Pending> batch) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long[] offsets = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            offsets[i] = bytes.size();
+            byte[] entry = batch.get(i).text.getBytes(StandardCharsets.UTF_8);
+            bytes.write(entry, 0, entry.length);
+            bytes.write('\n');
+        }
+
+        try {
+            if (appender == null) {
+                appender = openAppender();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            long batchStart;
+            // other shells may share the file, so nothing else can be appended between finding
+            // the end and writing the whole batch there
+            FileLock lock = appender.lock();
+            try {
+                // in append mode the position is the end of the file, where the batch goes
+                batchStart = appender.position();
+                while (buffer.hasRemaining()) {
+                    appender.write(buffer);
+                }
+            } finally {
+                lock.release();
+            }
+            appender.force(false);
+
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] += batchStart;
+            }
+            return offsets;
+        } catch (IOException e) {
+            System.err.println("Error: cannot write history file " + file + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Opens the history file for appending, creating it readable only by the user if it's new.
+     * @return The open file
+     * @throws IOException If the file couldn't be opened
+     */
+    private static FileChannel openAppender() throws IOException {
+        if (Files.notExists(file) && FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            try {
+                // commands can have passwords in them, so other users shouldn't see them
+                Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (FileAlreadyExistsException e) {
+                // another shell just made it
+            }
+        }
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Waits for every command to be written to the history file.
+     * @param timeoutMillis The longest time to wait
+     */
+    private static synchronized void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() || writing) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                History.class.wait(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts the threads that spend most of their lives waiting: the pumps copying output from
+ * one process into the next, builtin stages of pipelines and parallel's workers.
+ *
+ * On Java 21 and later these are virtual threads, so hundreds of background jobs or parallel
+ * jobs don't need hundreds of OS threads. The shell still builds and runs on older Java, so
+ * virtual threads are found by reflection, and without them a cached pool of daemon threads
+ * is used instead, which at least saves starting a new thread for every pipeline.
+ *
+ * Setting the shell.threads property to "platform" turns virtual threads off, to compare the two.
+ */
+public class IoThreads {
+    /**
+     * Makes virtual threads, or null if this JVM doesn't have them (or they're turned off).
+     */
+    private static final ThreadFactory virtualThreads = findVirtualThreads();
+
+    /**
+     * The pool used without virtual threads, created the first time it's needed.
+     */
+    private static final class Pool {
+        static final ExecutorService POOL = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "io-idle");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Looks for Thread.ofVirtual(), which is only there from Java 21 (or 19 with preview
+     * features turned on).
+     * @return A factory for virtual threads, or null if there isn't one
+     */
+    private static ThreadFactory findVirtualThreads() {
+        if ("platform".equals(System.getProperty("shell.threads"))) {
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Determines whether tasks run on virtual threads.
+     * @return True if this JVM has virtual threads and they aren't turned off
+     */
+    public static boolean virtual() {
+        return virtualThreads != null;
+    }
+
+    /**
+     * Runs a task on a thread of its own, without waiting for it.
+     * @param name The name the thread has while it runs the task
+     * @param task The task
+     */
+    public static void start(String name, Runnable task) {
+        if (virtualThreads != null) {
+            Thread thread = virtualThreads.newThread(task);
+            thread.setName(name);
+            thread.start();
+            return;
+        }
+
+        Pool.POOL.execute(() -> {
+            Thread thread = Thread.currentThread();
+            thread.setName(name);
+            try {
+                task.run();
+            } finally {
+                // the thread goes back to the pool, so nothing of this task should stay with it
+                Thread.interrupted();
+                thread.setName("io-idle");
+            }
+        });
+    }
+
+    /**
+     * Makes a factory for a pool's threads, which are virtual threads if there are any and
+     * daemon threads otherwise.
+     * @param name The name of every thread
+     * @return The factory
+     */
+    public static ThreadFactory factory(String name) {
+        if (virtualThreads != null) {
+            return runnable -> {
+                Thread thread = virtualThreads.newThread(runnable);
+                thread.setName(name);
+                return thread;
+            };
+        }
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
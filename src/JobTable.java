@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps track of the pipelines that were started in the background with &.
+ *
+ * Jobs report their own completion through Pipeline.onExit, so nothing polls them. Finished
+ * jobs are announced before the next prompt, and stay in the table until that happens (or
+ * until jobs, wait or fg has shown them).
+ */
+public class JobTable {
+    /**
+     * A single background pipeline.
+     */
+    private static class Job {
+        /**
+         * The number the user refers to this job by.
+         */
+        final int id;
+
+        /**
+         * The full text of the command that started this job.
+         */
+        final String text;
+
+        /**
+         * The pipeline running this job.
+         */
+        final Pipeline pipeline;
+
+        Job(int id, String text, Pipeline pipeline) {
+            this.id = id;
+            this.text = text;
+            this.pipeline = pipeline;
+        }
+
+        /**
+         * Describes the state of this job the way bash does.
+         * @return "Running", "Done" or "Exit" followed by the exit status
+         */
+        String state() {
+            if (!pipeline.onExit().isDone()) {
+                return "Running";
+            }
+            int status = pipeline.onExit().join();
+            return status == 0 ? "Done" : "Exit " + status;
+        }
+    }
+
+    /**
+     * Every job that hasn't been reported as finished yet, by id.
+     */
+    private static final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    /**
+     * Jobs that have finished since the last prompt, in the order they finished.
+     */
+    private static final ConcurrentLinkedQueue<Job> finished = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Starts a pipeline in the background.
+     * @param stages The parsed pipeline
+     * @param text The full text of the command, for showing in jobs
+     * @return 0, 1 if a redirection failed, or 127 if a command couldn't be started
+     */
+    public static int launch(CommandLine.PipelineNode stages, String text) {
+        Pipeline pipeline = new Pipeline(stages, true);
+        try {
+            pipeline.start();
+        } catch (FileSystemException e) {
+            // the message has already been printed by start()
+            return 1;
+        } catch (IOException e) {
+            // the message has already been printed by start()
+            return 127;
+        }
+
+        Job job;
+        synchronized (jobs) {
+            // like bash, take the number after the highest job still in the table
+            int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+            job = new Job(id, text, pipeline);
+            jobs.put(id, job);
+        }
+        pipeline.onExit().thenRun(() -> finished.add(job));
+
+        List<Long> pids = pipeline.pids();
+        System.out.println("[" + job.id + "] " + (pids.isEmpty() ? "" : pids.get(pids.size() - 1)));
+        return 0;
+    }
+
+    /**
+     * Announces every job that has finished since the last time this was called.
+     */
+    public static void printNotifications() {
+        Job job;
+        while ((job = finished.poll()) != null) {
+            if (remove(job)) {
+                System.out.println("[" + job.id + "]  " + job.state() + "    " + job.text);
+            }
+        }
+    }
+
+    /**
+     * Runs the jobs builtin, listing every job (and forgetting the ones that have finished).
+     * @param command The jobs command, -l also shows process ids
+     * @param out Where the list should be written
+     * @return 0
+     * @throws IOException If the list couldn't be written
+     */
+    public static int jobs(String[] command, ByteSink out) throws IOException {
+        boolean showPids = command.length > 1 && command[1].equals("-l");
+        for (Job job : snapshot()) {
+            StringBuilder line = new StringBuilder();
+            line.append('[').append(job.id).append("]  ");
+            if (showPids) {
+                for (long pid : job.pipeline.pids()) {
+                    line.append(pid).append(' ');
+                }
+            }
+            line.append(String.format("%-10s", job.state())).append(job.text);
+            out.println(line);
+
+            if (job.pipeline.onExit().isDone()) {
+                remove(job);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Runs the wait builtin, waiting for the given jobs (or every job) to finish.
+     * @param command The wait command, followed by job ids
+     * @param out Where errors should be written
+     * @return The exit status of the last job waited for, or 127 if a job doesn't exist
+     * @throws IOException If an error couldn't be written
+     */
+    public static int waitFor(String[] command, ByteSink out) throws IOException {
+        List<Job> toWaitFor = new ArrayList<>();
+        if (command.length == 1) {
+            toWaitFor.addAll(snapshot());
+        } else {
+            for (int i = 1; i < command.length; i++) {
+                Optional<Job> job = find(command[i]);
+                if (job.isEmpty()) {
+                    out.println("wait: no such job " + command[i]);
+                    return 127;
+                }
+                toWaitFor.add(job.get());
+            }
+        }
+
+        int status = 0;
+        for (Job job : toWaitFor) {
+            status = join(job);
+            remove(job);
+        }
+
+        return status;
+    }
+
+    /**
+     * Runs the fg builtin, bringing a job (the most recent one by default) to the foreground.
+     * @param command The fg command, optionally followed by a job id
+     * @param out Where the job's command and any errors should be written
+     * @return The exit status of the job, or 1 if it doesn't exist
+     * @throws IOException If the output couldn't be written
+     */
+    public static int fg(String[] command, ByteSink out) throws IOException {
+        Optional<Job> job;
+        if (command.length == 1) {
+            List<Job> all = snapshot();
+            job = all.isEmpty() ? Optional.empty() : Optional.of(all.get(all.size() - 1));
+        } else {
+            job = find(command[1]);
+        }
+        if (job.isEmpty()) {
+            out.println("fg: no such job" + (command.length == 1 ? "" : " " + command[1]));
+            return 1;
+        }
+
+        out.println(job.get().text);
+        out.flush();
+        int status = join(job.get());
+        remove(job.get());
+        return status;
+    }
+
+    /**
+     * Runs the kill builtin, stopping jobs (%id) or any process (pid).
+     * @param command The kill command, -9 kills outright instead of asking the process to stop
+     * @param out Where errors should be written
+     * @return 0, or 1 if any target couldn't be found
+     * @throws IOException If an error couldn't be written
+     */
+    public static int kill(String[] command, ByteSink out) throws IOException {
+        int first = 1;
+        boolean forcibly = false;
+        if (command.length > 1 && command[1].equals("-9")) {
+            forcibly = true;
+            first = 2;
+        }
+        if (first >= command.length) {
+            out.println("kill: usage: kill [-9] %job | pid ...");
+            return 1;
+        }
+
+        int status = 0;
+        for (int i = first; i < command.length; i++) {
+            String target = command[i];
+            if (target.startsWith("%")) {
+                Optional<Job> job = find(target);
+                if (job.isEmpty()) {
+                    out.println("kill: no such job " + target);
+                    status = 1;
+                } else {
+                    job.get().pipeline.destroy(forcibly);
+                }
+                continue;
+            }
+
+            Optional<ProcessHandle> process;
+            try {
+                process = ProcessHandle.of(Long.parseLong(target));
+            } catch (NumberFormatException e) {
+                out.println("kill: " + target + " is not a pid or %job");
+                status = 1;
+                continue;
+            }
+            if (process.isEmpty()) {
+                out.println("kill: no such process " + target);
+                status = 1;
+                continue;
+            }
+            boolean stopped;
+            try {
+                stopped = forcibly ? process.get().destroyForcibly() : process.get().destroy();
+            } catch (IllegalStateException | SecurityException e) {
+                // the shell itself, or a process we aren't allowed to signal
+                stopped = false;
+            }
+            if (!stopped) {
+                out.println("kill: could not stop process " + target);
+                status = 1;
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Determines whether the kill builtin runs a command, or leaves it to the kill program.
+     * @param command The kill command (including arguments)
+     * @return True if the only option is -9 and every target is a %job or a pid
+     */
+    public static boolean handlesKill(String[] command) {
+        int first = command.length > 1 && command[1].equals("-9") ? 2 : 1;
+        for (int i = first; i < command.length; i++) {
+            String target = command[i];
+            if (target.startsWith("%")) {
+                continue;
+            }
+            if (target.isEmpty() || !target.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                // another signal (-15, -HUP, -s TERM), -l, or something only kill itself can report on
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a job to finish.
+     * @param job The job to wait for
+     * @return The exit status of the job, or 130 if interrupted
+     */
+    private static int join(Job job) {
+        try {
+            return job.pipeline.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 130;
+        }
+    }
+
+    /**
+     * Finds a job from what the user typed, which may be "3" or "%3".
+     * @param id The job id
+     * @return The job, or empty if there isn't one with that id
+     */
+    private static Optional<Job> find(String id) {
+        try {
+            int number = Integer.parseInt(id.startsWith("%") ? id.substring(1) : id);
+            synchronized (jobs) {
+                return Optional.ofNullable(jobs.get(number));
+            }
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Takes a copy of every job in the table, in id order.
+     * @return The jobs
+     */
+    private static List<Job> snapshot() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * Removes a job from the table.
+     * @param job The job to remove
+     * @return True if the job was still in the table
+     */
+    private static boolean remove(Job job) {
+        synchronized (jobs) {
+            return jobs.remove(job.id, job);
+        }
+    }
+}
@@ -0,0 +1,572 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts external commands through a small helper process instead of from the shell itself,
+ * when $SHELL_LAUNCHER is set (to anything but 0).
+ *
+ * A JVM that forks to start a child (with -Djdk.lang.Process.launchMechanism=FORK, or on
+ * JDKs that default to it) gets slower at it the bigger its heap is, so the helper is a second
+ * JVM with a tiny heap and hardly any threads, started in the background when the shell starts.
+ * The shell asks it to start each command over a Unix domain socket, and it starts them with
+ * posix_spawn. Where the shell already uses posix_spawn itself, as recent JDKs on Linux do,
+ * the extra round trip makes starting a command a little slower rather than faster.
+ *
+ * Java can't pass file descriptors over a socket, so a command reading from or writing to a
+ * pipe gets a connection of its own for that stream, which the helper copies to and from the
+ * child. Closing either end of one of those connections works just like closing a pipe, so
+ * "yes | head" still finishes. Streams that go to the terminal or to a file are handed to
+ * the child directly, as usual.
+ *
+ * Until the helper is ready (and if it ever goes away), commands are started directly. The
+ * helper has the shell's environment as it was when the shell started, and it exits as soon
+ * as the shell does.
+ */
+public class Launcher {
+    /**
+     * What a connection to the helper is for, sent as its first byte.
+     */
+    private static final byte SPAWN = 0;
+    private static final byte STDIN = 1;
+    private static final byte STDOUT = 2;
+
+    /**
+     * Heap and JIT settings for the helper, which only needs enough to start processes.
+     */
+    private static final String[] HELPER_OPTIONS = {
+            "-Xmx32m", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-Djdk.lang.Process.launchMechanism=POSIX_SPAWN"
+    };
+
+    /**
+     * The helper's socket, or null if there is no helper.
+     */
+    private static volatile UnixDomainSocketAddress address;
+
+    /**
+     * The helper process, or null if there is none.
+     */
+    private static Process helper;
+
+    /**
+     * The directory holding the helper's socket.
+     */
+    private static Path socketDirectory;
+
+    /**
+     * Starts the helper in the background if $SHELL_LAUNCHER asks for it.
+     */
+    public static void startIfRequested() {
+        String setting = System.getenv("SHELL_LAUNCHER");
+        if (setting != null && !setting.isEmpty() && !setting.equals("0")) {
+            // starting a JVM takes a while, and commands are started directly until it's up
+            IoThreads.start("launcher-start", Launcher::startHelper);
+        }
+    }
+
+    /**
+     * Starts the helper, if it isn't running already. Doesn't wait for it to be ready.
+     */
+    public static synchronized void startHelper() {
+        if (helper != null || System.getProperty("os.name").startsWith("Windows")) {
+            return;
+        }
+        try {
+            socketDirectory = Files.createTempDirectory("shell-launcher");
+            Path socket = socketDirectory.resolve("socket");
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.addAll(List.of(HELPER_OPTIONS));
+            command.add("Launcher");
+            command.add(socket.toString());
+            // the helper's own streams are the ones children inherit
+            helper = new ProcessBuilder(command).inheritIO().start();
+            address = UnixDomainSocketAddress.of(socket);
+            Runtime.getRuntime().addShutdownHook(new Thread(Launcher::stopHelper));
+        } catch (IOException e) {
+            System.err.println("Error: cannot start the launcher (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Waits for the helper to accept connections.
+     * @param millis How long to wait at most
+     * @return True if the helper is ready
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static boolean awaitHelper(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < deadline) {
+            UnixDomainSocketAddress target = address;
+            if (target != null) {
+                try {
+                    SocketChannel.open(target).close();
+                    return true;
+                } catch (IOException e) {
+                    // the helper hasn't opened its socket yet
+                }
+            }
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    /**
+     * Stops the helper, after which commands are started directly again.
+     */
+    public static synchronized void stopHelper() {
+        address = null;
+        if (helper != null) {
+            helper.destroy();
+            helper = null;
+        }
+        if (socketDirectory != null) {
+            deleteSocket(socketDirectory.resolve("socket"));
+            socketDirectory = null;
+        }
+    }
+
+    /**
+     * Starts a process through the helper.
+     * @param pb What to start. Errors can't be sent to a pipe, only inherited or redirected
+     * to a file.
+     * @return The process, or null if the helper isn't available (or can't start this
+     * process), in which case the caller should start it itself
+     * @throws IOException If the helper couldn't start the process
+     */
+    static Process start(ProcessBuilder pb) throws IOException {
+        UnixDomainSocketAddress target = address;
+        if (target == null || pb.redirectErrorStream()
+                || pb.redirectError().type() == ProcessBuilder.Redirect.Type.PIPE) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream request = new DataOutputStream(bytes);
+        request.writeInt(pb.command().size());
+        for (String word : pb.command()) {
+            request.writeUTF(word);
+        }
+        request.writeUTF(pb.directory() == null ? System.getProperty("user.dir") : pb.directory().getPath());
+        for (ProcessBuilder.Redirect redirect : new ProcessBuilder.Redirect[]{pb.redirectInput(), pb.redirectOutput(), pb.redirectError()}) {
+            request.writeByte(redirect.type().ordinal());
+            request.writeUTF(redirect.file() == null ? "" : redirect.file().getPath());
+        }
+
+        SocketChannel control;
+        try {
+            control = SocketChannel.open(target);
+        } catch (IOException e) {
+            // not up yet, or gone
+            return null;
+        }
+        long pid = 0;
+        long id = 0;
+        String refusal = null;
+        try {
+            send(control, SPAWN, bytes.toByteArray());
+            DataInputStream response = new DataInputStream(Channels.newInputStream(control));
+            if (response.readBoolean()) {
+                pid = response.readLong();
+                id = response.readLong();
+            } else {
+                refusal = response.readUTF();
+            }
+        } catch (IOException e) {
+            // the helper went away in the middle of it
+            control.close();
+            return null;
+        }
+        if (refusal != null) {
+            // the same failure as starting it directly, such as a command that doesn't exist
+            control.close();
+            throw new IOException(refusal);
+        }
+
+        SocketChannel stdin = null;
+        SocketChannel stdout = null;
+        if (pb.redirectInput().type() == ProcessBuilder.Redirect.Type.PIPE) {
+            stdin = SocketChannel.open(target);
+            send(stdin, STDIN, id);
+        }
+        if (pb.redirectOutput().type() == ProcessBuilder.Redirect.Type.PIPE) {
+            stdout = SocketChannel.open(target);
+            send(stdout, STDOUT, id);
+        }
+        return new LaunchedProcess(pid, control, stdin, stdout);
+    }
+
+    /**
+     * A process started by the helper, which the shell can signal but not wait for itself.
+     */
+    static final class LaunchedProcess extends Process {
+        private final long pid;
+        private final OutputStream stdin;
+        private final InputStream stdout;
+
+        /**
+         * Completed with the exit status once the helper reports it.
+         */
+        private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+        /**
+         * The CPU time and peak memory the helper measured, set before the exit status.
+         * The process isn't the shell's child, so the shell can't see these once it's gone.
+         */
+        volatile long userNanos = ProcessAccounting.UNKNOWN;
+        volatile long systemNanos = ProcessAccounting.UNKNOWN;
+        volatile long peakRssKilobytes = ProcessAccounting.UNKNOWN;
+
+        LaunchedProcess(long pid, SocketChannel control, SocketChannel stdin, SocketChannel stdout) {
+            this.pid = pid;
+            this.stdin = stdin == null ? OutputStream.nullOutputStream() : Channels.newOutputStream(stdin);
+            this.stdout = stdout == null ? InputStream.nullInputStream() : Channels.newInputStream(stdout);
+            IoThreads.start("launcher-wait", () -> {
+                int status = 255;
+                try (control) {
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(control));
+                    status = (int) in.readLong();
+                    userNanos = in.readLong();
+                    systemNanos = in.readLong();
+                    peakRssKilobytes = in.readLong();
+                } catch (IOException e) {
+                    // the helper went away, so the status will never come
+                } finally {
+                    exit.complete(status);
+                }
+            });
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            try {
+                return exit.get();
+            } catch (ExecutionException e) {
+                // the future is only ever completed normally
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+            try {
+                exit.get(timeout, unit);
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        @Override
+        public int exitValue() {
+            if (!exit.isDone()) {
+                throw new IllegalThreadStateException("process " + pid + " hasn't exited");
+            }
+            return exit.join();
+        }
+
+        @Override
+        public void destroy() {
+            // any process of the same user can be signalled, not just our own children
+            ProcessHandle.of(pid).ifPresent(ProcessHandle::destroy);
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            ProcessHandle.of(pid).ifPresent(ProcessHandle::destroyForcibly);
+            return this;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return !exit.isDone();
+        }
+
+        @Override
+        public long pid() {
+            return pid;
+        }
+
+        @Override
+        public ProcessHandle toHandle() {
+            return ProcessHandle.of(pid).orElseThrow(() -> new UnsupportedOperationException("process " + pid + " has exited"));
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return exit.thenApply(status -> this);
+        }
+    }
+
+    /**
+     * A process the helper has started, until the shell has connected each of its pipes.
+     */
+    private static final class Child {
+        final Process process;
+        final AtomicInteger unconnected;
+
+        Child(Process process, int pipes) {
+            this.process = process;
+            this.unconnected = new AtomicInteger(pipes);
+        }
+    }
+
+    /**
+     * Runs the helper.
+     * @param args The path of the socket to listen on
+     * @throws IOException If the socket couldn't be opened
+     */
+    public static void main(String[] args) throws IOException {
+        Path socket = Paths.get(args[0]);
+        // the helper is no use to anyone once the shell that started it is gone
+        ProcessHandle.current().parent().ifPresent(parent -> parent.onExit().thenRun(() -> System.exit(0)));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteSocket(socket)));
+
+        Map<Long, Child> children = new ConcurrentHashMap<>();
+        AtomicLong ids = new AtomicLong();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            while (true) {
+                SocketChannel connection = server.accept();
+                IoThreads.start("launcher-connection", () -> serve(connection, children, ids));
+            }
+        }
+    }
+
+    /**
+     * Handles a single connection from the shell, which either asks for a process to be
+     * started or carries one of its pipes.
+     * @param connection The connection
+     * @param children Started processes whose pipes haven't all been connected yet
+     * @param ids Where the ids of started processes come from
+     */
+    private static void serve(SocketChannel connection, Map<Long, Child> children, AtomicLong ids) {
+        try {
+            ByteBuffer header = receive(connection, 9);
+            byte kind = header.get();
+            long value = header.getLong();
+            if (kind == SPAWN) {
+                spawn(connection, new DataInputStream(new ByteArrayInputStream(receive(connection, (int) value).array())), children, ids);
+                return;
+            }
+
+            Child child = children.get(value);
+            if (child == null) {
+                connection.close();
+                return;
+            }
+            if (child.unconnected.decrementAndGet() == 0) {
+                children.remove(value);
+            }
+            if (kind == STDIN) {
+                try (InputStream in = Channels.newInputStream(connection); OutputStream out = child.process.getOutputStream()) {
+                    BytePump.transfer(in, out);
+                }
+            } else {
+                try (InputStream in = child.process.getInputStream(); OutputStream out = Channels.newOutputStream(connection)) {
+                    BytePump.transfer(in, out);
+                }
+            }
+        } catch (IOException e) {
+            // one end went away, and closing the other passes that on
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Starts a process as the shell asked, and reports its exit status once it's done.
+     * @param connection The connection the request came on
+     * @param request The command, directory and redirections
+     * @param children Where to keep the process until its pipes are connected
+     * @param ids Where its id comes from
+     * @throws IOException If the shell couldn't be answered
+     */
+    private static void spawn(SocketChannel connection, DataInputStream request, Map<Long, Child> children,
+                              AtomicLong ids) throws IOException {
+        String[] command = new String[request.readInt()];
+        for (int i = 0; i < command.length; i++) {
+            command[i] = request.readUTF();
+        }
+        ProcessBuilder pb = new ProcessBuilder(command).directory(new File(request.readUTF()));
+        pb.redirectInput(readRedirect(request));
+        pb.redirectOutput(readRedirect(request));
+        pb.redirectError(readRedirect(request));
+        int pipes = (pb.redirectInput().type() == ProcessBuilder.Redirect.Type.PIPE ? 1 : 0)
+                + (pb.redirectOutput().type() == ProcessBuilder.Redirect.Type.PIPE ? 1 : 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream response = new DataOutputStream(bytes);
+        long startNanos = System.nanoTime();
+        Process process;
+        try {
+            process = pb.start();
+        } catch (IOException e) {
+            response.writeBoolean(false);
+            response.writeUTF(String.valueOf(e.getMessage()));
+            send(connection, bytes.toByteArray());
+            connection.close();
+            return;
+        }
+
+        long id = ids.incrementAndGet();
+        if (pipes > 0) {
+            children.put(id, new Child(process, pipes));
+        }
+        response.writeBoolean(true);
+        response.writeLong(process.pid());
+        response.writeLong(id);
+        send(connection, bytes.toByteArray());
+
+        ProcessAccounting.track(process, command, startNanos).thenAccept(record -> {
+            // the helper keeps no history, the shell has its own
+            ProcessAccounting.reset();
+            try (connection) {
+                ByteArrayOutputStream exit = new ByteArrayOutputStream(32);
+                DataOutputStream out = new DataOutputStream(exit);
+                out.writeLong(record.exitCode);
+                out.writeLong(record.userNanos);
+                out.writeLong(record.systemNanos);
+                out.writeLong(record.peakRssKilobytes);
+                send(connection, exit.toByteArray());
+            } catch (IOException e) {
+                // the shell stopped listening
+            }
+        });
+    }
+
+    /**
+     * Reads a redirection as written by start().
+     * @param request The request
+     * @return The redirection
+     * @throws IOException If the request was cut short
+     */
+    private static ProcessBuilder.Redirect readRedirect(DataInputStream request) throws IOException {
+        ProcessBuilder.Redirect.Type type = ProcessBuilder.Redirect.Type.values()[request.readByte()];
+        File file = new File(request.readUTF());
+        switch (type) {
+            case READ:
+                return ProcessBuilder.Redirect.from(file);
+            case WRITE:
+                return ProcessBuilder.Redirect.to(file);
+            case APPEND:
+                return ProcessBuilder.Redirect.appendTo(file);
+            case INHERIT:
+                return ProcessBuilder.Redirect.INHERIT;
+            default:
+                return ProcessBuilder.Redirect.PIPE;
+        }
+    }
+
+    /**
+     * Sends the header that starts a connection, followed by the rest of the message.
+     * @param channel The connection
+     * @param kind What the connection is for
+     * @param payload The request to send after the header
+     * @throws IOException If the message couldn't be sent
+     */
+    private static void send(SocketChannel channel, byte kind, byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(9 + payload.length);
+        buffer.put(kind).putLong(payload.length).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Sends the header that starts a connection for one of a process's pipes.
+     * @param channel The connection
+     * @param kind Which pipe the connection carries
+     * @param id The id of the process
+     * @throws IOException If the header couldn't be sent
+     */
+    private static void send(SocketChannel channel, byte kind, long id) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        buffer.put(kind).putLong(id).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Sends a whole message in one go.
+     * @param channel The connection
+     * @param message The message
+     * @throws IOException If the message couldn't be sent
+     */
+    private static void send(SocketChannel channel, byte[] message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads exactly the given number of bytes.
+     * @param channel The connection
+     * @param size How many bytes to read
+     * @return The bytes, ready to be read from
+     * @throws IOException If the connection ended first
+     */
+    private static ByteBuffer receive(SocketChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Removes the socket and the directory it's in.
+     * @param socket The socket
+     */
+    private static void deleteSocket(Path socket) {
+        try {
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(socket.getParent());
+        } catch (IOException e) {
+            // it's in the temporary directory, which gets cleaned up eventually
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a command line into words and operators in a single pass, without regular
+ * expressions.
+ *
+ * Double quotes, single quotes and backslashes work like they do in other shells, so a
+ * quoted "|" is just a word, while an unquoted one is a pipe. On Windows a backslash is a
+ * path separator, so there it's only special before a quote. The operators are
+ * |, &, ;, &&, ||, <, >, >>, 2> and 2>>, and >& with or without a digit before it (as in
+ * 2>&1), whose & never means the background. An unquoted # at the start of a word starts a
+ * comment that runs to the end of the line.
+ *
+ * $? stands for the exit status of the last command, which is only known when the command
+ * runs, so the lexer just remembers where it appeared (unquoted or in double quotes).
+ */
+public class Lexer {
+    /**
+     * Whether a backslash escapes the character after it.
+     */
+    private static final boolean backslashEscapes = !System.getProperty("os.name").startsWith("Windows");
+
+    /**
+     * The kinds of token a command line is made of.
+     */
+    public enum Type {
+        WORD, PIPE, AMP, SEMI, AND_IF, OR_IF, LESS, GREAT, DGREAT, ERR_GREAT, ERR_DGREAT, GREAT_AND
+    }
+
+    /**
+     * A single word or operator.
+     */
+    public static final class Token {
+        /**
+         * What kind of token this is.
+         */
+        public final Type type;
+
+        /**
+         * The text of the token, with any quotes and escapes already removed.
+         */
+        public final String text;
+
+        /**
+         * Where $? appears in the text, to be replaced by the exit status of the last command,
+         * or null if it doesn't.
+         */
+        public final int[] statusAt;
+
+        Token(Type type, String text) {
+            this(type, text, null);
+        }
+
+        Token(Type type, String text, int[] statusAt) {
+            this.type = type;
+            this.text = text;
+            this.statusAt = statusAt;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /*
+     * Operators never change, so every occurrence shares the same token.
+     */
+    private static final Token PIPE = new Token(Type.PIPE, "|");
+    private static final Token AMP = new Token(Type.AMP, "&");
+    private static final Token SEMI = new Token(Type.SEMI, ";");
+    private static final Token AND_IF = new Token(Type.AND_IF, "&&");
+    private static final Token OR_IF = new Token(Type.OR_IF, "||");
+    private static final Token LESS = new Token(Type.LESS, "<");
+    private static final Token GREAT = new Token(Type.GREAT, ">");
+    private static final Token DGREAT = new Token(Type.DGREAT, ">>");
+    private static final Token ERR_GREAT = new Token(Type.ERR_GREAT, "2>");
+    private static final Token ERR_DGREAT = new Token(Type.ERR_DGREAT, "2>>");
+    private static final Token GREAT_AND = new Token(Type.GREAT_AND, ">&");
+    private static final Token ERR_GREAT_AND = new Token(Type.GREAT_AND, "2>&");
+
+    /**
+     * Splits a command line into tokens.
+     * @param line The command line
+     * @return The tokens, in order (empty for a blank line or a comment)
+     * @throws SyntaxException If a quote is never closed
+     */
+    public static List<Token> lex(String line) throws SyntaxException {
+        List<Token> tokens = new ArrayList<>();
+        // only words with quotes or escapes in them need to be copied character by character
+        StringBuilder word = null;
+        // where $? appears in the current word
+        List<Integer> statusAt = new ArrayList<>();
+        int length = line.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = line.charAt(i);
+
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                i++;
+                continue;
+            }
+            if (c == '#') {
+                // the rest of the line is a comment
+                break;
+            }
+
+            // operators
+            Token operator = null;
+            char next = i + 1 < length ? line.charAt(i + 1) : 0;
+            switch (c) {
+                case '|':
+                    operator = next == '|' ? OR_IF : PIPE;
+                    break;
+                case '&':
+                    operator = next == '&' ? AND_IF : AMP;
+                    break;
+                case ';':
+                    operator = SEMI;
+                    break;
+                case '<':
+                    operator = LESS;
+                    break;
+                case '>':
+                    operator = next == '>' ? DGREAT : next == '&' ? GREAT_AND : GREAT;
+                    break;
+                case '2':
+                    // only a 2 on its own, right before the >, redirects the error stream
+                    if (next == '>') {
+                        char after = i + 2 < length ? line.charAt(i + 2) : 0;
+                        operator = after == '>' ? ERR_DGREAT : after == '&' ? ERR_GREAT_AND : ERR_GREAT;
+                    }
+                    break;
+                default:
+                    // any other stream copied with >& is still one operator, which the parser turns down
+                    if (c >= '0' && c <= '9' && next == '>' && i + 2 < length && line.charAt(i + 2) == '&') {
+                        operator = new Token(Type.GREAT_AND, c + ">&");
+                    }
+                    break;
+            }
+            if (operator != null) {
+                tokens.add(operator);
+                i += operator.text.length();
+                continue;
+            }
+
+            // a word, which runs until the next unquoted space or operator
+            int wordStart = i;
+            boolean copying = false;
+            statusAt.clear();
+            while (i < length) {
+                c = line.charAt(i);
+                if (c == ' ' || c == '\t' || c == '\r' || c == '\n'
+                        || c == '|' || c == '&' || c == ';' || c == '<' || c == '>') {
+                    break;
+                }
+                if (c == '"' || c == '\'' || (c == '\\' && (backslashEscapes || isQuote(line, i + 1)))) {
+                    if (!copying) {
+                        if (word == null) {
+                            word = new StringBuilder();
+                        }
+                        word.setLength(0);
+                        word.append(line, wordStart, i);
+                        copying = true;
+                    }
+                    i = c == '\\' ? escape(line, i, word) : quoted(line, i, word, statusAt);
+                    continue;
+                }
+                if (c == '$' && i + 1 < length && line.charAt(i + 1) == '?') {
+                    statusAt.add(copying ? word.length() : i - wordStart);
+                }
+                if (copying) {
+                    word.append(c);
+                }
+                i++;
+            }
+            tokens.add(new Token(Type.WORD, copying ? word.toString() : line.substring(wordStart, i), positions(statusAt)));
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Determines whether a line of a script goes on to the next one, because it ends in a
+     * backslash that isn't quoted, escaped or part of a comment. On Windows, where a backslash
+     * is a path separator, a line never does.
+     * @param line A line of a script (or several already joined), without the line separator
+     * @return True if the last backslash escapes the line break
+     */
+    public static boolean continues(CharSequence line) {
+        if (!backslashEscapes) {
+            return false;
+        }
+        int length = line.length();
+        // whether a # here would be part of a word rather than start a comment
+        boolean inWord = false;
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == length) {
+                    return true;
+                }
+                i += 2;
+                inWord = true;
+            } else if (c == '\'' || c == '"') {
+                // skip the quoted section, which can't hold the line break
+                i++;
+                while (i < length && line.charAt(i) != c) {
+                    i += c == '"' && line.charAt(i) == '\\' && i + 1 < length ? 2 : 1;
+                }
+                if (i >= length) {
+                    // an unterminated quote, which lex() reports
+                    return false;
+                }
+                i++;
+                inWord = true;
+            } else if (c == '#' && !inWord) {
+                return false;
+            } else {
+                inWord = !(c == ' ' || c == '\t' || c == '\r' || c == '\n'
+                        || c == '|' || c == '&' || c == ';' || c == '<' || c == '>');
+                i++;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Turns the positions of $? in a word into an array.
+     * @param statusAt The positions
+     * @return The positions, or null if there aren't any
+     */
+    private static int[] positions(List<Integer> statusAt) {
+        if (statusAt.isEmpty()) {
+            return null;
+        }
+        int[] positions = new int[statusAt.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = statusAt.get(i);
+        }
+        return positions;
+    }
+
+    /**
+     * Checks whether there is a quote at a position of the command line.
+     * @param line The command line
+     * @param i The position to check
+     * @return True if the character at that position is a quote
+     */
+    private static boolean isQuote(String line, int i) {
+        return i < line.length() && (line.charAt(i) == '"' || line.charAt(i) == '\'');
+    }
+
+    /**
+     * Copies a backslash-escaped character into a word.
+     * @param line The command line
+     * @param backslash The position of the backslash
+     * @param word The word being built
+     * @return The position after the escaped character
+     */
+    private static int escape(String line, int backslash, StringBuilder word) {
+        if (backslash + 1 < line.length()) {
+            word.append(line.charAt(backslash + 1));
+            return backslash + 2;
+        }
+        // a backslash at the very end of the line stands for itself
+        word.append('\\');
+        return backslash + 1;
+    }
+
+    /**
+     * Copies the contents of a quoted section into a word.
+     * @param line The command line
+     * @param open The position of the opening quote
+     * @param word The word being built
+     * @param statusAt Where $? appears in the word, which is added to inside double quotes
+     * @return The position after the closing quote
+     * @throws SyntaxException If the quote is never closed
+     */
+    private static int quoted(String line, int open, StringBuilder word, List<Integer> statusAt) throws SyntaxException {
+        char quote = line.charAt(open);
+        int i = open + 1;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == quote) {
+                return i + 1;
+            }
+            // inside double quotes, a backslash only escapes another double quote or backslash
+            if (quote == '"' && c == '\\' && i + 1 < line.length()
+                    && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                word.append(line.charAt(i + 1));
+                i += 2;
+                continue;
+            }
+            if (quote == '"' && c == '$' && i + 1 < line.length() && line.charAt(i + 1) == '?') {
+                statusAt.add(word.length());
+            }
+            word.append(c);
+            i++;
+        }
+
+        throw new SyntaxException("unterminated " + quote + " quote");
+    }
+}
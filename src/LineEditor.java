@@ -0,0 +1,527 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads lines typed at the prompt, with editing, history and tab completion.
+ *
+ * The terminal is put into raw mode (no echo, a key at a time) with stty while a line is
+ * being typed, and put back the way it was before the line is run, so commands see the
+ * terminal just as they would otherwise. Where there's no terminal or no stty (such as on
+ * Windows, or with input from a pipe), lines are read as they always were.
+ *
+ * Keys:
+ *   Tab              completes a command or file name (twice shows every match)
+ *   Left, Right      move along the line (as do Home/Ctrl-A and End/Ctrl-E)
+ *   Up, Down         step through the history
+ *   Backspace, Del   delete a character (Ctrl-U, Ctrl-K and Ctrl-W delete more)
+ *   Ctrl-L           clears the screen
+ *   Ctrl-D           ends the shell on an empty line
+ */
+public class LineEditor {
+    /**
+     * Where keys are read from.
+     */
+    private static final InputStream in = System.in;
+
+    /**
+     * Where the line is drawn.
+     */
+    private static final PrintStream out = System.out;
+
+    /**
+     * The terminal settings to put back once a line has been read, or null if the terminal
+     * isn't in raw mode.
+     */
+    private static volatile String savedSettings;
+
+    /**
+     * Whether raw mode works here, which is only known after the first try.
+     */
+    private static boolean rawModeWorks = canUseRawMode();
+
+    /**
+     * How many columns the terminal has.
+     */
+    private static int width = 80;
+
+    /**
+     * The line being typed.
+     */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Where the cursor is in the line.
+     */
+    private int cursor;
+
+    /**
+     * The prompt in front of the line.
+     */
+    private String prompt = "";
+
+    /**
+     * How far the cursor was from the start of the prompt when it was last drawn.
+     */
+    private int drawnCursor;
+
+    /**
+     * Reads a line, printing the prompt first.
+     * @param prompt The prompt
+     * @return The line, or null at the end of input
+     * @throws IOException If the input couldn't be read
+     */
+    public static String readLine(String prompt) throws IOException {
+        if (rawModeWorks && enterRawMode()) {
+            try {
+                return new LineEditor().edit(prompt);
+            } finally {
+                leaveRawMode();
+            }
+        }
+
+        out.print(prompt);
+        out.flush();
+        return readCookedLine();
+    }
+
+    /**
+     * Checks whether the shell is talking to a terminal that stty can put in raw mode.
+     * @return True if raw mode is worth trying
+     */
+    private static boolean canUseRawMode() {
+        if (System.console() == null || System.getProperty("os.name").startsWith("Windows")
+                || !new File("/dev/tty").exists()) {
+            return false;
+        }
+
+        // a terminal left in raw mode is unusable, so it's put back however the shell ends
+        Runtime.getRuntime().addShutdownHook(new Thread(LineEditor::leaveRawMode));
+        // start finding commands now, so they're ready by the first tab
+        Completer.refresh();
+        return true;
+    }
+
+    /**
+     * Puts the terminal in raw mode, remembering how it was.
+     * @return True if it worked
+     */
+    private static boolean enterRawMode() {
+        // one stty process saves the settings, reads the size and switches to raw mode
+        String output = stty("stty -g; stty size; stty -icanon -echo min 1 time 0");
+        String[] lines = output == null ? new String[0] : output.split("\n");
+        if (lines.length < 2) {
+            rawModeWorks = false;
+            return false;
+        }
+
+        savedSettings = lines[0].trim();
+        try {
+            width = Integer.parseInt(lines[1].trim().split("\\s+")[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            width = 0;
+        }
+        if (width <= 0) {
+            // some terminals don't know their size
+            width = 80;
+        }
+        return true;
+    }
+
+    /**
+     * Puts the terminal back the way it was before raw mode, if it's in raw mode.
+     */
+    private static void leaveRawMode() {
+        String settings = savedSettings;
+        if (settings != null) {
+            savedSettings = null;
+            stty("stty " + settings);
+        }
+    }
+
+    /**
+     * Runs stty commands on the terminal.
+     * @param commands The commands, for sh
+     * @return What they wrote, or null if they failed
+     */
+    private static String stty(String commands) {
+        try {
+            Process process = new ProcessBuilder("sh", "-c", commands)
+                    .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/tty")))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset());
+            return process.waitFor() == 0 ? output : null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a line the ordinary way, with the terminal doing the editing.
+     * @return The line, or null at the end of input
+     * @throws IOException If the input couldn't be read
+     */
+    private static String readCookedLine() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            bytes.write(b);
+        }
+        if (b == -1 && bytes.size() == 0) {
+            return null;
+        }
+        String text = bytes.toString(Charset.defaultCharset());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Lets the user type and edit a line.
+     * @param prompt The prompt
+     * @return The line, or null at the end of input
+     * @throws IOException If the input couldn't be read
+     */
+    private String edit(String prompt) throws IOException {
+        this.prompt = prompt;
+        out.print(prompt);
+        out.flush();
+
+        // where we are in the history, and what was typed before going back through it
+        int historyNumber = History.size() + 1;
+        String typed = null;
+        boolean lastWasTab = false;
+
+        while (true) {
+            int key = in.read();
+            boolean tab = false;
+            switch (key) {
+                case -1:
+                    // the end of input finishes the line, or the shell if there's no line
+                    return line.length() == 0 ? null : finish();
+                case '\r':
+                case '\n':
+                    return finish();
+                case 4: // Ctrl-D
+                    if (line.length() == 0) {
+                        return null;
+                    }
+                    delete(cursor, cursor + 1);
+                    break;
+                case '\t':
+                    tab = true;
+                    complete(lastWasTab);
+                    break;
+                case 127:
+                case '\b':
+                    delete(cursor - 1, cursor);
+                    break;
+                case 1: // Ctrl-A
+                    moveCursor(0);
+                    break;
+                case 5: // Ctrl-E
+                    moveCursor(line.length());
+                    break;
+                case 11: // Ctrl-K
+                    delete(cursor, line.length());
+                    break;
+                case 21: // Ctrl-U
+                    delete(0, cursor);
+                    break;
+                case 23: { // Ctrl-W
+                    int start = cursor;
+                    while (start > 0 && line.charAt(start - 1) == ' ') {
+                        start--;
+                    }
+                    while (start > 0 && line.charAt(start - 1) != ' ') {
+                        start--;
+                    }
+                    delete(start, cursor);
+                    break;
+                }
+                case 12: // Ctrl-L
+                    out.print("\033[H\033[2J");
+                    drawnCursor = 0;
+                    redraw();
+                    break;
+                case 27: {
+                    String sequence = readEscapeSequence();
+                    switch (sequence) {
+                        case "[D":
+                        case "OD":
+                            moveCursor(cursor - 1);
+                            break;
+                        case "[C":
+                        case "OC":
+                            moveCursor(cursor + 1);
+                            break;
+                        case "[H":
+                        case "OH":
+                        case "[1~":
+                        case "[7~":
+                            moveCursor(0);
+                            break;
+                        case "[F":
+                        case "OF":
+                        case "[4~":
+                        case "[8~":
+                            moveCursor(line.length());
+                            break;
+                        case "[3~":
+                            delete(cursor, cursor + 1);
+                            break;
+                        case "[A":
+                        case "OA":
+                        case "[B":
+                        case "OB": {
+                            boolean up = sequence.endsWith("A");
+                            int number = historyNumber + (up ? -1 : 1);
+                            if (number < 1 || number > History.size() + 1) {
+                                break;
+                            }
+                            if (typed == null) {
+                                typed = line.toString();
+                            }
+                            String command = number == History.size() + 1 ? typed : History.get(number);
+                            if (command != null) {
+                                historyNumber = number;
+                                replace(0, line.length(), command);
+                            }
+                            break;
+                        }
+                        default:
+                            // a key we don't do anything with
+                            break;
+                    }
+                    break;
+                }
+                default:
+                    if (key >= 32) {
+                        insert(readCharacter(key));
+                    }
+                    break;
+            }
+            lastWasTab = tab;
+            out.flush();
+        }
+    }
+
+    /**
+     * Finishes the line, leaving the cursor on the row after it.
+     * @return The line
+     */
+    private String finish() {
+        moveCursor(line.length());
+        out.print("\n");
+        out.flush();
+        return line.toString();
+    }
+
+    /**
+     * Reads the rest of an escape sequence, such as "[A" for the up arrow.
+     * @return The sequence after the escape
+     * @throws IOException If the input couldn't be read
+     */
+    private static String readEscapeSequence() throws IOException {
+        StringBuilder sequence = new StringBuilder();
+        int b = in.read();
+        if (b != '[' && b != 'O') {
+            return b == -1 ? "" : String.valueOf((char) b);
+        }
+        sequence.append((char) b);
+        // parameters, then a final character from @ to ~
+        while ((b = in.read()) != -1) {
+            sequence.append((char) b);
+            if (b >= 0x40 && b <= 0x7e) {
+                break;
+            }
+        }
+        return sequence.toString();
+    }
+
+    /**
+     * Reads the rest of a UTF-8 character.
+     * @param first The first byte of the character
+     * @return The character (two chars for one outside the basic plane)
+     * @throws IOException If the input couldn't be read
+     */
+    private static String readCharacter(int first) throws IOException {
+        int length = first >= 0xf0 ? 4 : first >= 0xe0 ? 3 : first >= 0xc0 ? 2 : 1;
+        byte[] bytes = new byte[length];
+        bytes[0] = (byte) first;
+        for (int i = 1; i < length; i++) {
+            int b = in.read();
+            if (b == -1) {
+                length = i;
+                break;
+            }
+            bytes[i] = (byte) b;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Completes the word at the cursor, or shows what it could be completed to.
+     * @param again Whether the key before this one was also a tab
+     */
+    private void complete(boolean again) {
+        Completer.Completion completion = Completer.complete(line.toString(), cursor);
+        if (completion == null) {
+            out.print('\007');
+            return;
+        }
+
+        String current = line.substring(completion.start, cursor);
+        if (!completion.text.equals(current)) {
+            replace(completion.start, cursor, completion.text);
+        } else if (!again) {
+            // the second tab shows the matches
+            out.print('\007');
+        } else {
+            showCandidates(completion.candidates, completion.total);
+        }
+    }
+
+    /**
+     * Shows the matches for a word in columns under the line, then draws the line again.
+     * @param candidates The matches
+     * @param total How many matches there are in total
+     */
+    private void showCandidates(List<String> candidates, int total) {
+        moveCursor(line.length());
+        StringBuilder text = new StringBuilder("\n");
+
+        int columnWidth = 1;
+        for (String candidate : candidates) {
+            // a path's matches are shown by name, without the directory
+            columnWidth = Math.max(columnWidth, shortName(candidate).length() + 2);
+        }
+        int columns = Math.max(1, width / columnWidth);
+        for (int i = 0; i < candidates.size(); i++) {
+            String name = shortName(candidates.get(i));
+            text.append(name);
+            if (i % columns == columns - 1 || i == candidates.size() - 1) {
+                text.append('\n');
+            } else {
+                text.append(" ".repeat(columnWidth - name.length()));
+            }
+        }
+        if (total > candidates.size()) {
+            text.append("(").append(total - candidates.size()).append(" more)\n");
+        }
+
+        out.print(text);
+        drawnCursor = 0;
+        redraw();
+    }
+
+    /**
+     * Returns the last part of a name, the way it's shown in a list of matches.
+     * @param name The name
+     * @return The part after the last /, keeping a / at the end
+     */
+    private static String shortName(String name) {
+        int slash = name.lastIndexOf('/', name.length() - 2);
+        return name.substring(slash + 1);
+    }
+
+    /**
+     * Inserts text at the cursor.
+     * @param text The text
+     */
+    private void insert(String text) {
+        replace(cursor, cursor, text);
+    }
+
+    /**
+     * Deletes part of the line.
+     * @param start Where the part starts (clamped to the line)
+     * @param end Where the part ends (clamped to the line)
+     */
+    private void delete(int start, int end) {
+        start = Math.max(0, start);
+        end = Math.min(line.length(), end);
+        if (start < end) {
+            replace(start, end, "");
+        }
+    }
+
+    /**
+     * Replaces part of the line, leaving the cursor after the new text.
+     * @param start Where the part starts
+     * @param end Where the part ends
+     * @param text The new text
+     */
+    private void replace(int start, int end, String text) {
+        boolean atEnd = end == line.length() && cursor == line.length();
+        line.replace(start, end, text);
+        cursor = start + text.length();
+        if (atEnd && start == end) {
+            // typing at the end of the line (by far the most common) only needs an echo
+            out.print(text);
+            drawnCursor += text.length();
+            wrapIfNeeded();
+            return;
+        }
+        redraw();
+    }
+
+    /**
+     * Moves the cursor within the line.
+     * @param position Where it should go (clamped to the line)
+     */
+    private void moveCursor(int position) {
+        cursor = Math.max(0, Math.min(line.length(), position));
+        moveTo(prompt.length() + cursor);
+    }
+
+    /**
+     * Draws the prompt and line again from the start of the prompt, and puts the cursor back.
+     */
+    private void redraw() {
+        moveTo(0);
+        out.print(prompt);
+        out.print(line);
+        drawnCursor = prompt.length() + line.length();
+        wrapIfNeeded();
+        // anything left over from a longer line is cleared away
+        out.print("\033[J");
+        moveTo(prompt.length() + cursor);
+    }
+
+    /**
+     * Moves the terminal cursor to a position counted from the start of the prompt,
+     * across as many rows as the line takes up.
+     * @param position The position
+     */
+    private void moveTo(int position) {
+        int rowsUp = drawnCursor / width - position / width;
+        if (rowsUp > 0) {
+            out.print("\033[" + rowsUp + "A");
+        } else if (rowsUp < 0) {
+            out.print("\033[" + -rowsUp + "B");
+        }
+        out.print('\r');
+        if (position % width > 0) {
+            out.print("\033[" + position % width + "C");
+        }
+        drawnCursor = position;
+    }
+
+    /**
+     * Moves the terminal cursor onto the next row after filling the last column, which
+     * terminals otherwise hold off doing until the next character.
+     */
+    private void wrapIfNeeded() {
+        if (drawnCursor > 0 && drawnCursor % width == 0) {
+            out.print(" \r");
+        }
+    }
+}
@@ -0,0 +1,582 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The list builtin, which shows the contents of the current directory.
+ *
+ * Every line looks like "drwx       4096 Oct 26, 2021 14:03 name": whether the entry is a
+ * directory, whether the current user can read, write and execute it, its size in bytes,
+ * when it was last modified, and its name.
+ *
+ * Entries are read with a DirectoryStream and a single stat per entry (through the "unix"
+ * attribute view where there is one), rather than a separate call for every column, and
+ * lines are written as they are made instead of being collected first. Directories with
+ * more than CHUNK_SIZE entries have the rest of their entries read on the fork-join pool,
+ * a chunk at a time, while still being handled in directory order.
+ *
+ * Full listings are remembered by DirectoryCache, so listing the same directory again
+ * (with any sort, top or pattern) doesn't touch the disk until something in it changes.
+ */
+public class Listing {
+    /**
+     * How many entries are formatted together, and how many are always done in line.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * How many chunks may be read ahead of the one being written.
+     */
+    private static final int CHUNKS_IN_FLIGHT = 2 * ForkJoinPool.getCommonPoolParallelism();
+
+    /**
+     * The format of the modification date, which is safe to share between threads. It's only
+     * made the first time a line is formatted, since tab completion reads listings too and
+     * loading the locale data for month names is a noticeable part of starting up.
+     */
+    private static final class Dates {
+        static final DateTimeFormatter FORMAT =
+                DateTimeFormatter.ofPattern("MMM dd, yyyy HH:mm").withZone(ZoneId.systemDefault());
+    }
+
+    /**
+     * Every attribute needed for a line, read in one stat (only on systems with the unix view).
+     */
+    private static final String UNIX_ATTRIBUTES = "unix:mode,uid,gid,size,lastModifiedTime,isDirectory";
+
+    /**
+     * Whether the file system has the "unix" attribute view.
+     */
+    private static final boolean hasUnixView =
+            Paths.get("").getFileSystem().supportedFileAttributeViews().contains("unix");
+
+    /**
+     * The user the shell runs as, for working out permissions from mode bits.
+     */
+    private static final class Identity {
+        /**
+         * The user id.
+         */
+        final int uid;
+
+        /**
+         * Every group the user is in.
+         */
+        final Set<Integer> groups;
+
+        Identity(int uid, Set<Integer> groups) {
+            this.uid = uid;
+            this.groups = groups;
+        }
+
+        /**
+         * The identity of the shell, only known where /proc/self/status can be read.
+         */
+        static final Identity SELF = read();
+
+        /**
+         * Reads the identity of the shell from /proc/self/status.
+         * @return The identity, or null if it can't be read
+         */
+        private static Identity read() {
+            try {
+                int uid = -1;
+                Set<Integer> groups = new HashSet<>();
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    // the effective ids are the second column of Uid: and Gid:
+                    if (line.startsWith("Uid:")) {
+                        uid = Integer.parseInt(line.substring(4).trim().split("\\s+")[1]);
+                    } else if (line.startsWith("Gid:")) {
+                        groups.add(Integer.parseInt(line.substring(4).trim().split("\\s+")[1]));
+                    } else if (line.startsWith("Groups:")) {
+                        for (String group : line.substring(7).trim().split("\\s+")) {
+                            if (!group.isEmpty()) {
+                                groups.add(Integer.parseInt(group));
+                            }
+                        }
+                    }
+                }
+                return uid < 0 ? null : new Identity(uid, groups);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A single directory entry, with everything needed for its line.
+     */
+    static final class Entry {
+        /**
+         * The name of the entry.
+         */
+        final String name;
+
+        /**
+         * Whether the entry is a directory (8), and the current user can read (4), write (2)
+         * and execute (1) it.
+         */
+        final int flags;
+
+        /**
+         * The size of the entry in bytes.
+         */
+        final long size;
+
+        /**
+         * When the entry was last modified, in milliseconds since the epoch.
+         */
+        final long modified;
+
+        Entry(String name, int flags, long size, long modified) {
+            this.name = name;
+            this.flags = flags;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Determines whether the entry is a directory.
+         * @return True if it's a directory
+         */
+        boolean isDirectory() {
+            return (flags & 8) != 0;
+        }
+    }
+
+    /**
+     * The orders entries can be sorted in: by name, biggest first, or newest first.
+     */
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing(entry -> entry.name);
+    private static final Comparator<Entry> BY_SIZE = Comparator.<Entry>comparingLong(entry -> entry.size).reversed().thenComparing(BY_NAME);
+    private static final Comparator<Entry> BY_MTIME = Comparator.<Entry>comparingLong(entry -> entry.modified).reversed().thenComparing(BY_NAME);
+
+    /**
+     * Receives the entries of a directory a chunk at a time, in directory order.
+     */
+    private interface ChunkHandler {
+        /**
+         * Handles a chunk of entries.
+         * @param chunk The entries, in directory order
+         * @throws IOException If the entries couldn't be handled
+         */
+        void accept(List<Entry> chunk) throws IOException;
+    }
+
+    /**
+     * Hands over the entries of a directory a chunk at a time, whether they're read from
+     * disk or come from DirectoryCache.
+     */
+    private interface ChunkSource {
+        /**
+         * Hands over every entry, a chunk at a time and in directory order.
+         * @param limit How many entries are wanted at most
+         * @param handler What to do with each chunk
+         * @throws IOException If the handler failed
+         */
+        void forEachChunk(int limit, ChunkHandler handler) throws IOException;
+    }
+
+    /**
+     * Runs the list builtin.
+     *
+     * list [--sort=name|size|mtime] [-r] [--top n] [pattern...]
+     *
+     * Patterns are globs matched against each name, such as "*.java". As in other shells,
+     * names starting with a dot are only matched by patterns starting with a dot.
+     *
+     * Sizes are sorted biggest first and times newest first, and -r turns the order around.
+     * Without --sort entries are written in directory order as they're read. With --sort
+     * and --top only the top n entries are ever held, in a heap, so a huge directory is
+     * never sorted as a whole.
+     *
+     * @param command The list command (including options)
+     * @param out Where the list of files should be written
+     * @return 0, 1 if the directory couldn't be read, or 2 if the options weren't understood
+     * @throws IOException If the list couldn't be written
+     */
+    public static int list(String[] command, ByteSink out) throws IOException {
+        Comparator<Entry> order = null;
+        boolean reverse = false;
+        int top = -1;
+        List<PathMatcher> patterns = new ArrayList<>();
+        List<PathMatcher> hiddenPatterns = new ArrayList<>();
+
+        for (int i = 1; i < command.length; i++) {
+            String option = command[i];
+            if (option.startsWith("--sort=")) {
+                switch (option.substring(7)) {
+                    case "name":
+                        order = BY_NAME;
+                        break;
+                    case "size":
+                        order = BY_SIZE;
+                        break;
+                    case "mtime":
+                        order = BY_MTIME;
+                        break;
+                    default:
+                        out.println("list: cannot sort by " + option.substring(7) + " (expected name, size or mtime)");
+                        return 2;
+                }
+            } else if (option.equals("-r")) {
+                reverse = true;
+            } else if (option.equals("--top") || option.startsWith("--top=")) {
+                String count = option.equals("--top") ? (i + 1 < command.length ? command[++i] : "") : option.substring(6);
+                try {
+                    top = Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    top = -1;
+                }
+                if (top < 0) {
+                    out.println("list: --top needs a number");
+                    return 2;
+                }
+            } else if (option.startsWith("-") && option.length() > 1) {
+                out.println("list: usage: list [--sort=name|size|mtime] [-r] [--top n] [pattern...]");
+                return 2;
+            } else {
+                try {
+                    // like other shells, only a pattern starting with a dot matches hidden names
+                    PathMatcher pattern = FileSystems.getDefault().getPathMatcher("glob:" + option);
+                    (option.startsWith(".") ? hiddenPatterns : patterns).add(pattern);
+                } catch (IllegalArgumentException e) {
+                    out.println("list: bad pattern " + option);
+                    return 2;
+                }
+            }
+        }
+        if (reverse) {
+            order = (order == null ? BY_NAME : order).reversed();
+        }
+
+        boolean filtered = !patterns.isEmpty() || !hiddenPatterns.isEmpty();
+        Path directory = Shell.cwd();
+
+        // a directory listed a moment ago is most likely still the same
+        List<Entry> cached = DirectoryCache.get(directory);
+        if (cached != null) {
+            write((limit, handler) -> {
+                List<Entry> chunk = new ArrayList<>(CHUNK_SIZE);
+                int taken = 0;
+                for (Entry entry : cached) {
+                    if (taken == limit) {
+                        break;
+                    }
+                    if (filtered && !matches(Paths.get(entry.name), patterns, hiddenPatterns)) {
+                        continue;
+                    }
+                    chunk.add(entry);
+                    taken++;
+                    if (chunk.size() == CHUNK_SIZE) {
+                        handler.accept(chunk);
+                        chunk = new ArrayList<>(CHUNK_SIZE);
+                    }
+                }
+                handler.accept(chunk);
+            }, order, top, out);
+            return 0;
+        }
+
+        // only a listing of every entry is worth remembering (--top only ever holds its heap),
+        // and the directory's time has to be taken before reading it, so a change made while
+        // it's read isn't missed
+        boolean remember = !filtered && top < 0;
+        FileTime modified = remember ? DirectoryCache.modified(directory) : null;
+
+        // names are matched before anything else is read, so filtered out entries cost nothing
+        DirectoryStream.Filter<Path> filter = path -> !filtered || matches(path.getFileName(), patterns, hiddenPatterns);
+
+        DirectoryStream<Path> stream;
+        try {
+            stream = Files.newDirectoryStream(directory, filter);
+        } catch (IOException e) {
+            out.println("Error: cannot read directory " + directory);
+            return 1;
+        }
+
+        try (stream) {
+            Iterator<Path> paths = stream.iterator();
+            ArrayList<Entry> everything = new ArrayList<>();
+            boolean[] remembering = {remember};
+            write((limit, handler) -> forEachChunk(paths, limit, chunk -> {
+                if (remembering[0]) {
+                    everything.addAll(chunk);
+                    if (everything.size() > DirectoryCache.MAX_ENTRIES) {
+                        // too big to be cached, so stop holding on to it and keep streaming
+                        remembering[0] = false;
+                        everything.clear();
+                        everything.trimToSize();
+                    }
+                }
+                handler.accept(chunk);
+            }), order, top, out);
+            if (remembering[0]) {
+                DirectoryCache.put(directory, modified, everything);
+            }
+        } catch (DirectoryIteratorException e) {
+            out.println("Error: cannot read directory " + directory);
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns every entry of a directory, from DirectoryCache if it's there, and otherwise
+     * read the same way list reads them (and remembered for next time).
+     * @param directory The directory
+     * @return The entries, in directory order
+     * @throws IOException If the directory couldn't be read
+     */
+    static List<Entry> entries(Path directory) throws IOException {
+        List<Entry> cached = DirectoryCache.get(directory);
+        if (cached != null) {
+            return cached;
+        }
+
+        FileTime modified = DirectoryCache.modified(directory);
+        List<Entry> everything = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            forEachChunk(stream.iterator(), Integer.MAX_VALUE, everything::addAll);
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        DirectoryCache.put(directory, modified, everything);
+        return everything;
+    }
+
+    /**
+     * Writes the lines for the entries of a directory, in the order asked for.
+     * @param source Where the entries come from
+     * @param order The order to sort them in, or null to keep directory order
+     * @param top How many entries to write at most, or -1 for all of them
+     * @param out Where the lines should be written
+     * @throws IOException If the lines couldn't be written
+     */
+    private static void write(ChunkSource source, Comparator<Entry> order, int top, ByteSink out) throws IOException {
+        if (order == null) {
+            // written as they are read, stopping early if only the first few are wanted
+            int limit = top < 0 ? Integer.MAX_VALUE : top;
+            int[] written = {0};
+            source.forEachChunk(limit, chunk -> {
+                int count = Math.min(chunk.size(), limit - written[0]);
+                out.print(format(chunk.subList(0, count)));
+                written[0] += count;
+            });
+        } else if (top >= 0) {
+            // the worst of the entries kept so far sits at the head, ready to be pushed out
+            PriorityQueue<Entry> best = new PriorityQueue<>(Math.max(1, Math.min(top, CHUNK_SIZE)), order.reversed());
+            source.forEachChunk(Integer.MAX_VALUE, chunk -> {
+                for (Entry entry : chunk) {
+                    if (best.size() < top) {
+                        best.add(entry);
+                    } else if (top > 0 && order.compare(entry, best.peek()) < 0) {
+                        best.poll();
+                        best.add(entry);
+                    }
+                }
+            });
+            List<Entry> entries = new ArrayList<>(best);
+            entries.sort(order);
+            out.print(format(entries));
+        } else {
+            // sorting everything needs everything, but only the columns of each entry are kept
+            List<Entry> entries = new ArrayList<>();
+            source.forEachChunk(Integer.MAX_VALUE, entries::addAll);
+            entries.sort(order);
+            for (int i = 0; i < entries.size(); i += CHUNK_SIZE) {
+                out.print(format(entries.subList(i, Math.min(i + CHUNK_SIZE, entries.size()))));
+            }
+        }
+    }
+
+    /**
+     * Checks a name against the patterns given to list.
+     * @param name The name of an entry
+     * @param patterns The patterns for names that don't start with a dot
+     * @param hiddenPatterns The patterns for names that do
+     * @return True if any of the right patterns matches
+     */
+    private static boolean matches(Path name, List<PathMatcher> patterns, List<PathMatcher> hiddenPatterns) {
+        for (PathMatcher pattern : name.toString().startsWith(".") ? hiddenPatterns : patterns) {
+            if (pattern.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the entries of a directory a chunk at a time, and hands every chunk over in order.
+     *
+     * The first chunk is read right here, which is all most directories need. After that,
+     * the chunks are read on the fork-join pool, a few ahead of the one being handled.
+     *
+     * @param paths The entries of the directory
+     * @param limit How many entries are wanted at most
+     * @param handler What to do with each chunk
+     * @throws IOException If the handler failed
+     */
+    private static void forEachChunk(Iterator<Path> paths, int limit, ChunkHandler handler) throws IOException {
+        List<Entry> first = read(nextChunk(paths, limit));
+        handler.accept(first);
+        int taken = first.size();
+
+        ArrayDeque<CompletableFuture<List<Entry>>> inFlight = new ArrayDeque<>();
+        while (taken < limit && paths.hasNext()) {
+            List<Path> chunk = nextChunk(paths, limit - taken);
+            taken += chunk.size();
+            inFlight.add(CompletableFuture.supplyAsync(() -> read(chunk)));
+            if (inFlight.size() >= CHUNKS_IN_FLIGHT) {
+                handler.accept(inFlight.poll().join());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            handler.accept(inFlight.poll().join());
+        }
+    }
+
+    /**
+     * Takes the next chunk of entries from a directory.
+     * @param paths The entries of the directory
+     * @param limit How many entries are wanted at most
+     * @return Up to CHUNK_SIZE entries
+     */
+    private static List<Path> nextChunk(Iterator<Path> paths, int limit) {
+        List<Path> chunk = new ArrayList<>(Math.min(CHUNK_SIZE, limit));
+        while (chunk.size() < CHUNK_SIZE && chunk.size() < limit && paths.hasNext()) {
+            chunk.add(paths.next());
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads the attributes of a chunk of entries.
+     * @param chunk The entries
+     * @return The entries with their attributes, in the same order
+     */
+    private static List<Entry> read(List<Path> chunk) {
+        List<Entry> entries = new ArrayList<>(chunk.size());
+        for (Path path : chunk) {
+            entries.add(read(path));
+        }
+        return entries;
+    }
+
+    /**
+     * Makes the lines for some entries.
+     * @param entries The entries
+     * @return One line per entry
+     */
+    private static StringBuilder format(List<Entry> entries) {
+        StringBuilder lines = new StringBuilder(entries.size() * 64);
+        // files in the same directory are often modified in the same minute
+        long lastMinute = Long.MIN_VALUE;
+        String lastDate = null;
+
+        for (Entry entry : entries) {
+            lines.append((entry.flags & 8) != 0 ? 'd' : '-')
+                    .append((entry.flags & 4) != 0 ? 'r' : '-')
+                    .append((entry.flags & 2) != 0 ? 'w' : '-')
+                    .append((entry.flags & 1) != 0 ? 'x' : '-')
+                    .append(' ');
+            String digits = Long.toString(entry.size);
+            for (int i = digits.length(); i < 10; i++) {
+                lines.append(' ');
+            }
+            lines.append(digits);
+
+            long minute = Math.floorDiv(entry.modified, 60_000);
+            if (minute != lastMinute) {
+                lastMinute = minute;
+                lastDate = Dates.FORMAT.format(FileTime.fromMillis(entry.modified).toInstant());
+            }
+            lines.append(' ').append(lastDate).append(' ').append(entry.name).append('\n');
+        }
+
+        return lines;
+    }
+
+    /**
+     * Reads the attributes of an entry, in a single stat where possible.
+     * @param path The entry
+     * @return The entry with its attributes
+     */
+    private static Entry read(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            if (hasUnixView) {
+                Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES);
+                boolean directory = (Boolean) attributes.get("isDirectory");
+                int permissions = permissions(path, directory, (Integer) attributes.get("mode"),
+                        (Integer) attributes.get("uid"), (Integer) attributes.get("gid"));
+                return new Entry(name, (directory ? 8 : 0) | permissions, (Long) attributes.get("size"),
+                        ((FileTime) attributes.get("lastModifiedTime")).toMillis());
+            }
+
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Entry(name, (attributes.isDirectory() ? 8 : 0) | askPermissions(path),
+                    attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            // like File, a broken link (or an entry that just went away) shows up as nothing
+            return new Entry(name, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Works out whether the current user can read, write and execute an entry.
+     * @param path The entry
+     * @param directory Whether the entry is a directory
+     * @param mode The mode bits of the entry
+     * @param uid The owner of the entry
+     * @param gid The group of the entry
+     * @return The permissions, as read (4), write (2) and execute (1) bits
+     */
+    private static int permissions(Path path, boolean directory, int mode, int uid, int gid) {
+        Identity self = Identity.SELF;
+        if (self == null) {
+            // without knowing who we are, ask the system about each permission instead
+            return askPermissions(path);
+        } else if (self.uid == 0) {
+            // root can read and write anything, and execute anything with an execute bit
+            return 6 | (directory || (mode & 0111) != 0 ? 1 : 0);
+        } else if (self.uid == uid) {
+            return (mode >> 6) & 7;
+        } else if (self.groups.contains(gid)) {
+            return (mode >> 3) & 7;
+        }
+        return mode & 7;
+    }
+
+    /**
+     * Asks the system whether the current user can read, write and execute an entry.
+     * @param path The entry
+     * @return The permissions, as read (4), write (2) and execute (1) bits
+     */
+    private static int askPermissions(Path path) {
+        File file = path.toFile();
+        return (file.canRead() ? 4 : 0) | (file.canWrite() ? 2 : 0) | (file.canExecute() ? 1 : 0);
+    }
+}
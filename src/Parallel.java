@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The parallel builtin, which runs a command once per input on a pool of workers.
+ *
+ * parallel [-j jobs] [-k] command... [::: input...]
+ *
+ * Every {} in the command is replaced with the input (or the input is added to the end if
+ * there is no {}). Inputs come after :::, or one per line from the builtin's input when
+ * there is no :::. The command may be a single quoted string, which can contain pipes.
+ *
+ * The output of each job is collected and written all at once when it finishes, so the
+ * output of different jobs never interleaves. With -k it is also written in input order,
+ * and a job only starts once it's within a few jobs of the next output to be written.
+ * Every job runs as its own pipeline, so its processes are counted by ptime as usual.
+ */
+public class Parallel {
+    /**
+     * The highest exit status parallel reports, matching GNU parallel.
+     */
+    private static final int MAX_FAILURE_STATUS = 101;
+
+    /**
+     * Runs the parallel builtin.
+     * @param command The parallel command (including options, template and inputs)
+     * @param in Where inputs are read from when there is no :::
+     * @param out Where the output of every job is written
+     * @return The number of jobs that failed (at most 101), or 2 for a usage error
+     * @throws IOException If the output couldn't be written
+     */
+    public static int parallel(String[] command, ReadableByteChannel in, ByteSink out) throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean keepOrder = false;
+
+        int i = 1;
+        for (; i < command.length; i++) {
+            if (command[i].equals("-k")) {
+                keepOrder = true;
+            } else if (command[i].equals("-j") && i + 1 < command.length) {
+                try {
+                    workers = Integer.parseInt(command[++i]);
+                } catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    out.println("parallel: -j needs a positive number");
+                    return 2;
+                }
+            } else {
+                break;
+            }
+        }
+
+        int separator = Arrays.asList(command).indexOf(":::");
+        int templateEnd = separator < 0 ? command.length : separator;
+        if (i >= templateEnd) {
+            out.println("parallel: usage: parallel [-j jobs] [-k] command... [::: input...]");
+            return 2;
+        }
+        CommandLine.PipelineNode template;
+        if (templateEnd - i == 1 && command[i].indexOf(' ') >= 0) {
+            // a quoted command line, which may contain its own arguments, pipes and redirections
+            try {
+                CommandLine commandLine = Parser.parse(command[i]);
+                template = commandLine.lists.get(0).background ? null : commandLine.singlePipeline();
+            } catch (SyntaxException e) {
+                out.println("parallel: " + e.getMessage());
+                return 2;
+            }
+            if (template == null) {
+                out.println("parallel: the command must be a single pipeline");
+                return 2;
+            }
+        } else {
+            String[] words = Arrays.copyOfRange(command, i, templateEnd);
+            template = new CommandLine.PipelineNode(List.of(new CommandLine.SimpleCommand(words, List.of())));
+        }
+        // fill in $? now, since substitute() builds new commands and {} would move it around
+        template = template.expand(Shell.lastExitStatus);
+
+        Runner runner = new Runner(template, workers, keepOrder, out);
+        try {
+            if (separator >= 0) {
+                for (int j = separator + 1; j < command.length; j++) {
+                    runner.submit(command[j]);
+                }
+            } else {
+                BufferedReader reader = new BufferedReader(Channels.newReader(in, Charset.defaultCharset()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        runner.submit(line);
+                    }
+                }
+            }
+            runner.finish();
+        } catch (InterruptedException e) {
+            runner.abort();
+            Thread.currentThread().interrupt();
+            return 130;
+        }
+
+        if (runner.writeError != null) {
+            throw runner.writeError;
+        }
+        return Math.min(runner.failures.get(), MAX_FAILURE_STATUS);
+    }
+
+    /**
+     * Runs the jobs of a single parallel command and writes their output.
+     */
+    private static class Runner {
+        /**
+         * The commands of the pipeline every job runs, before the input is filled in.
+         */
+        final CommandLine.PipelineNode template;
+        final boolean keepOrder;
+        final ByteSink out;
+        final ExecutorService pool;
+
+        /**
+         * Limits how many inputs are queued up, so a huge input list isn't read all at once.
+         */
+        final Semaphore slots;
+
+        /**
+         * The number of jobs that exited with a nonzero status.
+         */
+        final AtomicInteger failures = new AtomicInteger();
+
+        /**
+         * With -k, finished output waiting for the jobs before it, by input position.
+         */
+        final TreeMap<Integer, byte[]> pending = new TreeMap<>();
+
+        /**
+         * With -k, the input position whose output should be written next.
+         */
+        int nextToWrite = 0;
+
+        /**
+         * With -k, how far past nextToWrite a job may start, which bounds the output held in
+         * pending while a slow job holds up the ones after it.
+         */
+        final int window;
+
+        /**
+         * The number of inputs submitted so far.
+         */
+        int submitted = 0;
+
+        /**
+         * The first error hit while writing output, if any.
+         */
+        volatile IOException writeError;
+
+        Runner(CommandLine.PipelineNode template, int workers, boolean keepOrder, ByteSink out) {
+            this.template = template;
+            this.keepOrder = keepOrder;
+            this.out = out;
+            // workers mostly wait for their jobs, which is what virtual threads are for
+            this.pool = Executors.newFixedThreadPool(workers, IoThreads.factory("parallel-worker"));
+            this.slots = new Semaphore(workers * 2);
+            this.window = workers * 2;
+        }
+
+        /**
+         * Queues a job for an input, waiting if too many are queued already.
+         * @param input The input to run the command for
+         * @throws InterruptedException If interrupted while waiting
+         */
+        void submit(String input) throws InterruptedException {
+            slots.acquire();
+            int position = submitted++;
+            if (keepOrder) {
+                awaitTurn(position);
+            }
+            CommandLine.PipelineNode stages = substitute(input);
+            pool.execute(() -> {
+                try {
+                    write(position, run(stages));
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+
+        /**
+         * With -k, waits until a job is close enough to the next output to be written.
+         * @param position The input position of the job
+         * @throws InterruptedException If interrupted while waiting
+         */
+        synchronized void awaitTurn(int position) throws InterruptedException {
+            // once writing has failed nothing more is written, so don't wait for it
+            while (position - nextToWrite >= window && writeError == null) {
+                wait();
+            }
+        }
+
+        /**
+         * Waits for every queued job to finish.
+         * @throws InterruptedException If interrupted while waiting
+         */
+        void finish() throws InterruptedException {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+
+        /**
+         * Stops every job that hasn't started yet.
+         */
+        void abort() {
+            pool.shutdownNow();
+        }
+
+        /**
+         * Fills the input into the command template.
+         * @param input The input
+         * @return The commands of the pipeline to run for that input
+         */
+        CommandLine.PipelineNode substitute(String input) {
+            List<CommandLine.SimpleCommand> stages = new ArrayList<>(template.commands.size());
+            boolean replaced = false;
+            for (CommandLine.SimpleCommand stage : template.commands) {
+                String[] words = stage.words.clone();
+                for (int i = 0; i < words.length; i++) {
+                    if (words[i].contains("{}")) {
+                        words[i] = words[i].replace("{}", input);
+                        replaced = true;
+                    }
+                }
+                // so "gzip -c {} > {}.gz" writes a file per input
+                List<CommandLine.Redirect> redirects = new ArrayList<>(stage.redirects.size());
+                for (CommandLine.Redirect redirect : stage.redirects) {
+                    if (redirect.target.contains("{}")) {
+                        redirects.add(new CommandLine.Redirect(redirect.kind, redirect.target.replace("{}", input)));
+                        replaced = true;
+                    } else {
+                        redirects.add(redirect);
+                    }
+                }
+                stages.add(new CommandLine.SimpleCommand(words, redirects));
+            }
+            if (!replaced) {
+                // with no {} anywhere, the input goes on the end of the last command
+                CommandLine.SimpleCommand last = stages.get(stages.size() - 1);
+                String[] words = Arrays.copyOf(last.words, last.words.length + 1);
+                words[words.length - 1] = input;
+                stages.set(stages.size() - 1, new CommandLine.SimpleCommand(words, last.redirects));
+            }
+
+            return new CommandLine.PipelineNode(stages);
+        }
+
+        /**
+         * Runs a single job to completion, collecting its output.
+         * @param stages The job's pipeline
+         * @return Everything the job wrote
+         */
+        byte[] run(CommandLine.PipelineNode stages) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Pipeline pipeline = new Pipeline(stages, true);
+            pipeline.redirectOutput(Channels.newChannel(output));
+            try {
+                pipeline.start();
+                if (pipeline.waitFor() != 0) {
+                    failures.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // the message has already been printed by start()
+                failures.incrementAndGet();
+            } catch (InterruptedException e) {
+                pipeline.destroy();
+                failures.incrementAndGet();
+            }
+
+            return output.toByteArray();
+        }
+
+        /**
+         * Writes the output of a finished job, or holds on to it until it's its turn.
+         * @param position The input position of the job
+         * @param output Everything the job wrote
+         */
+        synchronized void write(int position, byte[] output) {
+            try {
+                if (!keepOrder) {
+                    writeNow(output);
+                    return;
+                }
+                pending.put(position, output);
+                while (!pending.isEmpty() && pending.firstKey() == nextToWrite) {
+                    writeNow(pending.pollFirstEntry().getValue());
+                    nextToWrite++;
+                }
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            } finally {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Writes the output of a job straight away.
+         * @param output Everything the job wrote
+         * @throws IOException If the output couldn't be written
+         */
+        private void writeNow(byte[] output) throws IOException {
+            out.write(output, 0, output.length);
+            // flush per job, so results show up as they finish rather than at the end
+            out.flush();
+        }
+    }
+}
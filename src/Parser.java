@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a CommandLine out of the tokens of a line, by recursive descent.
+ *
+ * line     := and-or ((; | &) and-or)* [; | &]
+ * and-or   := pipeline ((&& | ||) pipeline)*
+ * pipeline := command (| command)*
+ * command  := (word | redirect word)+
+ *
+ * The only stream that can be copied with >& is the error stream onto the output (2>&1),
+ * and only after any redirection of the output, since errors then follow the output to
+ * wherever it ends up.
+ *
+ * Errors are reported the way bash reports them, naming the token that didn't fit.
+ */
+public class Parser {
+    /**
+     * The tokens of the line being parsed.
+     */
+    private final List<Lexer.Token> tokens;
+
+    /**
+     * The position of the next token to look at.
+     */
+    private int position = 0;
+
+    private Parser(List<Lexer.Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Parses a command line.
+     * @param line The command line, as typed
+     * @return The parsed command line (empty for a blank line or a comment)
+     * @throws SyntaxException If the line isn't a valid command line
+     */
+    public static CommandLine parse(String line) throws SyntaxException {
+        return new Parser(Lexer.lex(line)).commandLine();
+    }
+
+    /**
+     * Parses the whole line.
+     * @return The command line
+     * @throws SyntaxException If the line isn't a valid command line
+     */
+    private CommandLine commandLine() throws SyntaxException {
+        List<CommandLine.AndOr> lists = new ArrayList<>();
+        while (position < tokens.size()) {
+            lists.add(andOr());
+        }
+        return new CommandLine(lists);
+    }
+
+    /**
+     * Parses an and-or list, along with the ; or & that ends it.
+     * @return The and-or list
+     * @throws SyntaxException If the list isn't valid
+     */
+    private CommandLine.AndOr andOr() throws SyntaxException {
+        List<CommandLine.PipelineNode> pipelines = new ArrayList<>();
+        List<CommandLine.Connector> connectors = new ArrayList<>();
+        pipelines.add(pipeline());
+
+        while (position < tokens.size()) {
+            Lexer.Type type = tokens.get(position).type;
+            if (type == Lexer.Type.AND_IF || type == Lexer.Type.OR_IF) {
+                position++;
+                connectors.add(type == Lexer.Type.AND_IF ? CommandLine.Connector.AND_IF : CommandLine.Connector.OR_IF);
+                pipelines.add(pipeline());
+            } else {
+                break;
+            }
+        }
+
+        boolean background = false;
+        if (position < tokens.size()) {
+            Lexer.Type type = tokens.get(position).type;
+            if (type == Lexer.Type.AMP || type == Lexer.Type.SEMI) {
+                background = type == Lexer.Type.AMP;
+                position++;
+            } else {
+                throw unexpected();
+            }
+        }
+
+        return new CommandLine.AndOr(pipelines, connectors, background);
+    }
+
+    /**
+     * Parses a chain of commands joined by |.
+     * @return The pipeline
+     * @throws SyntaxException If the pipeline isn't valid
+     */
+    private CommandLine.PipelineNode pipeline() throws SyntaxException {
+        List<CommandLine.SimpleCommand> commands = new ArrayList<>();
+        commands.add(simpleCommand());
+        while (position < tokens.size() && tokens.get(position).type == Lexer.Type.PIPE) {
+            position++;
+            commands.add(simpleCommand());
+        }
+        return new CommandLine.PipelineNode(commands);
+    }
+
+    /**
+     * Parses a single command along with its redirections.
+     * @return The command
+     * @throws SyntaxException If there is no command here, or a redirection has no file
+     */
+    private CommandLine.SimpleCommand simpleCommand() throws SyntaxException {
+        List<String> words = new ArrayList<>();
+        List<CommandLine.Redirect> redirects = new ArrayList<>();
+        // where $? appears in each word, only made if some word has it
+        int[][] statusAt = null;
+
+        while (position < tokens.size()) {
+            Lexer.Token token = tokens.get(position);
+            CommandLine.Redirect.Kind kind = redirectKind(token.type);
+            if (token.type == Lexer.Type.WORD) {
+                if (token.statusAt != null) {
+                    if (statusAt == null) {
+                        statusAt = new int[tokens.size()][];
+                    }
+                    statusAt[words.size()] = token.statusAt;
+                }
+                words.add(token.text);
+                position++;
+            } else if (kind != null) {
+                position++;
+                if (position >= tokens.size() || tokens.get(position).type != Lexer.Type.WORD) {
+                    throw unexpected();
+                }
+                String target = tokens.get(position++).text;
+                if (token.type == Lexer.Type.GREAT_AND) {
+                    if (!token.text.equals("2>&") || !target.equals("1")) {
+                        throw new SyntaxException("unsupported redirection " + token.text + target + " (only 2>&1 is)");
+                    }
+                } else if (kind == CommandLine.Redirect.Kind.OUTPUT || kind == CommandLine.Redirect.Kind.APPEND) {
+                    for (CommandLine.Redirect earlier : redirects) {
+                        if (earlier.kind == CommandLine.Redirect.Kind.ERROR_TO_OUTPUT) {
+                            throw new SyntaxException("2>&1 must come after " + kind.text + ", to send errors to the same file");
+                        }
+                    }
+                }
+                redirects.add(new CommandLine.Redirect(kind, target));
+            } else {
+                break;
+            }
+        }
+
+        if (words.isEmpty()) {
+            // a command made only of redirections has nothing to run
+            throw unexpected();
+        }
+        return new CommandLine.SimpleCommand(words.toArray(new String[0]), redirects,
+                statusAt == null ? null : Arrays.copyOf(statusAt, words.size()));
+    }
+
+    /**
+     * Maps a redirection operator to the kind of redirection it makes.
+     * @param type The type of token
+     * @return The kind of redirection, or null if the token isn't a redirection
+     */
+    private static CommandLine.Redirect.Kind redirectKind(Lexer.Type type) {
+        switch (type) {
+            case LESS:
+                return CommandLine.Redirect.Kind.INPUT;
+            case GREAT:
+                return CommandLine.Redirect.Kind.OUTPUT;
+            case DGREAT:
+                return CommandLine.Redirect.Kind.APPEND;
+            case ERR_GREAT:
+                return CommandLine.Redirect.Kind.ERROR;
+            case ERR_DGREAT:
+                return CommandLine.Redirect.Kind.ERROR_APPEND;
+            case GREAT_AND:
+                // only 2>&1 gets past simpleCommand()
+                return CommandLine.Redirect.Kind.ERROR_TO_OUTPUT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates the error for the token at the current position not belonging there.
+     * @return The error
+     */
+    private SyntaxException unexpected() {
+        String token = position < tokens.size() ? tokens.get(position).text : "newline";
+        return new SyntaxException("syntax error near unexpected token `" + token + "'");
+    }
+}
@@ -0,0 +1,622 @@
+import java.io.*;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs a chain of |-separated commands with every stage executing at the same time.
+ *
+ * Every stage is connected to its neighbours with channels or streams, so no stage ever
+ * holds the full output of another stage in memory, and bytes are passed along exactly as
+ * they were written. Builtins run on their own thread, and the output of an external
+ * command is copied into the next one by a pump thread (both from IoThreads).
+ *
+ * ProcessBuilder.startPipeline isn't used, because it leaves the parent holding the read
+ * end of every pipe it creates: "yes | head" then never finishes, and each pipeline leaks
+ * file descriptors for the life of the shell.
+ */
+public class Pipeline {
+    /**
+     * A single command in the pipeline, either a builtin or an external process.
+     */
+    private static class Stage {
+        /**
+         * The command to run (including arguments).
+         */
+        final String[] command;
+
+        /**
+         * The builtin this stage runs, null for an external process.
+         */
+        final Builtin builtin;
+
+        /**
+         * The process started for this stage, null for a builtin.
+         */
+        Process process;
+
+        /**
+         * The accounting record of this stage's process, completed once it exits.
+         */
+        CompletableFuture<ProcessAccounting.ChildRecord> record;
+
+        /**
+         * Completed with this stage's exit status once it has finished.
+         */
+        CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+        /**
+         * Where a builtin reads its input from.
+         */
+        ReadableByteChannel in;
+
+        /**
+         * Where a builtin writes its output to, null for the shell's standard output.
+         */
+        WritableByteChannel out;
+
+        /**
+         * The redirections of this stage, in the order they were written.
+         */
+        final List<CommandLine.Redirect> redirects;
+
+        /**
+         * The file this stage's input comes from, its output goes to and its errors go to,
+         * each null if that stream isn't redirected.
+         */
+        Path inputFile;
+        Path outputFile;
+        Path errorFile;
+
+        /**
+         * Whether output and errors are added to the end of their files (>> and 2>>).
+         */
+        boolean appendOutput;
+        boolean appendError;
+
+        /**
+         * Whether errors go wherever the output goes (2>&1).
+         */
+        boolean errorToOutput;
+
+        /**
+         * The redirection files, opened before anything is started. A builtin reads and
+         * writes these directly, while an external process gets the file itself.
+         */
+        FileChannel inputChannel;
+        FileChannel outputChannel;
+        FileChannel errorChannel;
+
+        Stage(CommandLine.SimpleCommand command, boolean atPrompt) {
+            this.command = command.words;
+            this.builtin = Builtins.forCommand(command.words, atPrompt);
+            this.redirects = command.redirects;
+        }
+
+        /**
+         * Closes every redirection file this stage still holds.
+         */
+        void closeRedirects() {
+            closeQuietly(inputChannel);
+            closeQuietly(outputChannel);
+            closeQuietly(errorChannel);
+            inputChannel = null;
+            outputChannel = null;
+            errorChannel = null;
+        }
+    }
+
+    /**
+     * The stages of this pipeline, in order.
+     */
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * Completed once each thread copying output from one external process into the next is done.
+     */
+    private final List<CompletableFuture<Void>> pumps = new ArrayList<>();
+
+    /**
+     * Whether the pipeline runs in the background, and so mustn't read the shell's input.
+     */
+    private final boolean background;
+
+    /**
+     * The pipeline as it would be typed, for ShellMetrics.
+     */
+    private final String text;
+
+    /**
+     * Where the output of the last stage goes instead of the shell's output, if anywhere.
+     */
+    private WritableByteChannel output;
+
+    /**
+     * Completed with the exit status of the last stage once every stage has finished.
+     */
+    private CompletableFuture<Integer> completion;
+
+    /**
+     * Creates a pipeline out of its stages. Nothing is started until start() is called.
+     * @param pipeline The parsed pipeline
+     */
+    public Pipeline(CommandLine.PipelineNode pipeline) {
+        this(pipeline, false);
+    }
+
+    /**
+     * Creates a pipeline out of its stages. Nothing is started until start() is called.
+     * @param pipeline The parsed pipeline
+     * @param background Whether the pipeline runs in the background (its input is then empty)
+     */
+    public Pipeline(CommandLine.PipelineNode pipeline, boolean background) {
+        for (CommandLine.SimpleCommand command : pipeline.commands) {
+            // only the first stage of a pipeline typed at the prompt would read the user's typing
+            boolean atPrompt = Shell.interactive && !background && stages.isEmpty();
+            stages.add(new Stage(command, atPrompt));
+        }
+        this.background = background;
+        this.text = pipeline.toString();
+    }
+
+    /**
+     * Runs a pipeline to completion, printing an error if it can't be started.
+     * @param pipeline The parsed pipeline
+     * @return The exit status of the last stage, 1 if a redirection failed, 127 if a command
+     * couldn't be found, or 130 if interrupted
+     */
+    public static int run(CommandLine.PipelineNode pipeline) {
+        return run(pipeline, null);
+    }
+
+    /**
+     * Runs a pipeline to completion, printing an error if it can't be started.
+     * @param pipeline The parsed pipeline
+     * @param output Where the output of the last stage goes, or null for the shell's output
+     * @return The exit status of the last stage, 1 if a redirection failed, 127 if a command
+     * couldn't be found, or 130 if interrupted
+     */
+    public static int run(CommandLine.PipelineNode pipeline, WritableByteChannel output) {
+        Pipeline running = new Pipeline(pipeline);
+        if (output != null) {
+            running.redirectOutput(output);
+        }
+        try {
+            running.start();
+            return running.waitFor();
+        } catch (FileSystemException e) {
+            // a redirection file couldn't be opened, and start() has said which
+            return 1;
+        } catch (IOException e) {
+            // the message has already been printed by start()
+            return 127;
+        } catch (InterruptedException e) {
+            running.destroy();
+            System.out.println("Command forcefully exited");
+            return 130;
+        }
+    }
+
+    /**
+     * Sends the output of the last stage to a channel rather than the shell's output.
+     * Must be called before start(). The channel is closed once the last stage is done.
+     * @param output Where the output should go
+     */
+    public void redirectOutput(WritableByteChannel output) {
+        this.output = output;
+    }
+
+    /**
+     * Starts every stage of the pipeline without waiting for any of them.
+     * @throws IOException If any of the external commands couldn't be started (or a
+     * FileSystemException if a redirection file couldn't be opened)
+     */
+    public void start() throws IOException {
+        long startNanos = System.nanoTime();
+        long spawnNanos = 0;
+
+        // open every redirection first, so nothing is started if one of them fails
+        for (Stage stage : stages) {
+            try {
+                openRedirects(stage);
+            } catch (FileSystemException e) {
+                String reason = e.getReason();
+                if (e instanceof NoSuchFileException) {
+                    reason = "no such file or directory";
+                } else if (e instanceof AccessDeniedException) {
+                    reason = "permission denied";
+                } else if (reason == null) {
+                    reason = e.getClass().getSimpleName();
+                }
+                System.out.println("Error: cannot open " + e.getFile() + " (" + reason + ")");
+                for (Stage opened : stages) {
+                    opened.closeRedirects();
+                }
+                throw e;
+            }
+        }
+
+        // start the external processes first, so the builtins have something to connect to
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            if (stage.builtin == null) {
+                try {
+                    spawnNanos += startProcess(stage, i == 0 && !background, i == stages.size() - 1 && output == null);
+                } catch (IOException e) {
+                    StringBuilder fullTextOfCommand = new StringBuilder();
+                    for (String s : stage.command) {
+                        fullTextOfCommand.append(s).append(" ");
+                    }
+                    System.out.println("Invalid command: " + fullTextOfCommand);
+                    destroy();
+                    for (Stage opened : stages) {
+                        opened.closeRedirects();
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        // a builtin reads and writes its redirection files itself
+        for (Stage stage : stages) {
+            if (stage.builtin != null) {
+                stage.in = stage.inputChannel;
+                stage.out = stage.outputChannel;
+                // builtins report errors on their output, so 2> only creates the file
+                closeQuietly(stage.errorChannel);
+            }
+        }
+
+        // connect each pair of neighbouring stages
+        for (int i = 0; i < stages.size() - 1; i++) {
+            Stage left = stages.get(i);
+            Stage right = stages.get(i + 1);
+            if (left.outputFile != null || right.inputFile != null) {
+                // a redirection takes the place of the pipe, so there's nothing to connect:
+                // the left side has nobody listening and the right side gets nothing
+                if (left.outputFile == null) {
+                    if (left.builtin == null) {
+                        left.process.getInputStream().close();
+                    } else {
+                        left.out = Channels.newChannel(OutputStream.nullOutputStream());
+                    }
+                }
+                if (right.inputFile == null) {
+                    if (right.builtin == null) {
+                        right.process.getOutputStream().close();
+                    } else {
+                        right.in = Channels.newChannel(InputStream.nullInputStream());
+                    }
+                }
+            } else if (left.builtin == null && right.builtin == null) {
+                startPump(left.process.getInputStream(), right.process.getOutputStream(),
+                        left.command[0] + " | " + right.command[0]);
+            } else if (left.builtin == null) {
+                right.in = Channels.newChannel(left.process.getInputStream());
+            } else if (right.builtin == null) {
+                left.out = Channels.newChannel(right.process.getOutputStream());
+            } else {
+                // two builtins talk over an OS pipe, so neither side needs a heap copy
+                Pipe pipe = Pipe.open();
+                left.out = pipe.sink();
+                right.in = pipe.source();
+            }
+        }
+
+        // a builtin at the start of the pipeline has nothing to read
+        // (one at the end is left with a null output, meaning standard output)
+        Stage last = stages.get(stages.size() - 1);
+        if (output != null) {
+            if (last.outputFile != null) {
+                // the output went to a file instead, so there's nothing to capture
+                output.close();
+            } else if (last.builtin != null) {
+                last.out = output;
+            } else {
+                startPump(last.process.getInputStream(), Channels.newOutputStream(output), last.command[0]);
+            }
+        }
+        Stage first = stages.get(0);
+        if (first.inputFile != null) {
+            // the input comes from a file, which has already been set up
+        } else if (first.builtin != null) {
+            // the user's typing belongs to the prompt, but a script's builtin gets the shell's input
+            first.in = background || Shell.interactive ? Channels.newChannel(InputStream.nullInputStream()) : Shell.stdin();
+        } else if (background) {
+            // a background job mustn't steal the user's typing, so it gets an empty input
+            first.process.getOutputStream().close();
+        }
+
+        List<CompletableFuture<?>> everything = new ArrayList<>(pumps);
+        for (Stage stage : stages) {
+            if (stage.builtin != null) {
+                IoThreads.start("pipeline-" + stage.command[0], () -> runBuiltin(stage));
+            }
+            everything.add(stage.exit);
+        }
+
+        CompletableFuture<Integer> lastExit = last.exit;
+        completion = CompletableFuture.allOf(everything.toArray(new CompletableFuture<?>[0])).thenApply(done -> lastExit.join());
+
+        // the shell's own share of getting going, apart from the time the system took to spawn
+        ShellMetrics.record(ShellMetrics.Phase.DISPATCH, System.nanoTime() - startNanos - spawnNanos, text, 0);
+    }
+
+    /**
+     * Waits for every stage of the pipeline to finish.
+     * @return The exit code of the last stage
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public int waitFor() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            // none of the stages complete exceptionally, so this can only be a bug
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            ShellMetrics.record(ShellMetrics.Phase.WAIT, startNanos, text);
+        }
+    }
+
+    /**
+     * Returns a future that is completed once every stage of the pipeline has finished,
+     * without anyone having to wait for (or poll) it.
+     * @return A future completed with the exit code of the last stage
+     */
+    public CompletableFuture<Integer> onExit() {
+        return completion;
+    }
+
+    /**
+     * Returns the process ids of every external process in the pipeline.
+     * @return The process ids, in pipeline order
+     */
+    public List<Long> pids() {
+        // only the ids, since a process started by the launcher has no handle once it's gone
+        List<Long> pids = new ArrayList<>();
+        for (Stage stage : stages) {
+            if (stage.process != null) {
+                pids.add(stage.process.pid());
+            }
+        }
+
+        return pids;
+    }
+
+    /**
+     * Forcefully stops every process in this pipeline.
+     */
+    public void destroy() {
+        destroy(true);
+    }
+
+    /**
+     * Stops every process in this pipeline.
+     * @param forcibly Whether to kill the processes outright rather than asking them to stop
+     */
+    public void destroy(boolean forcibly) {
+        for (Stage stage : stages) {
+            // builtins aren't interrupted, since that would close the channel they write to
+            // (possibly standard output), they stop once the processes around them are gone
+            if (stage.process != null) {
+                if (forcibly) {
+                    stage.process.destroyForcibly();
+                } else {
+                    stage.process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the files a stage's streams are redirected to or from.
+     *
+     * Like other shells, every output file is created (or emptied) in the order they're
+     * written, even if a later redirection of the same stream takes its place.
+     *
+     * @param stage The stage whose redirections to open
+     * @throws FileSystemException If a file couldn't be opened
+     */
+    private static void openRedirects(Stage stage) throws IOException {
+        Path here = Shell.cwd();
+        for (CommandLine.Redirect redirect : stage.redirects) {
+            Path file = here.resolve(redirect.target);
+            switch (redirect.kind) {
+                case INPUT:
+                    closeQuietly(stage.inputChannel);
+                    stage.inputChannel = FileChannel.open(file, StandardOpenOption.READ);
+                    stage.inputFile = file;
+                    break;
+                case OUTPUT:
+                case APPEND:
+                    closeQuietly(stage.outputChannel);
+                    stage.appendOutput = redirect.kind == CommandLine.Redirect.Kind.APPEND;
+                    stage.outputChannel = openForWriting(file, stage.appendOutput);
+                    stage.outputFile = file;
+                    break;
+                case ERROR:
+                case ERROR_APPEND:
+                    stage.errorToOutput = false;
+                    closeQuietly(stage.errorChannel);
+                    stage.appendError = redirect.kind == CommandLine.Redirect.Kind.ERROR_APPEND;
+                    stage.errorChannel = openForWriting(file, stage.appendError);
+                    stage.errorFile = file;
+                    break;
+                case ERROR_TO_OUTPUT:
+                    // the parser only allows this after the output's own redirection, so wherever
+                    // the output goes now is where it ends up
+                    closeQuietly(stage.errorChannel);
+                    stage.errorChannel = null;
+                    stage.errorFile = null;
+                    stage.errorToOutput = true;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown redirection " + redirect.kind);
+            }
+        }
+    }
+
+    /**
+     * Opens a file to redirect output into, creating it if it doesn't exist.
+     * @param file The file
+     * @param append Whether to add to the end of the file rather than emptying it
+     * @return The open file
+     * @throws IOException If the file couldn't be opened
+     */
+    private static FileChannel openForWriting(Path file, boolean append) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Starts the external process of a single stage, and starts accounting for it.
+     * @param stage The stage to start
+     * @param first Whether this stage reads the shell's input
+     * @param last Whether this stage writes to the shell's output
+     * @return How long the system took to spawn the process, in nanoseconds
+     * @throws IOException If the process couldn't be started
+     */
+    private static long startProcess(Stage stage, boolean first, boolean last) throws IOException {
+        String[] command = stage.command;
+        // find the executable through the hash table, which never looks in the current directory
+        String executable = CommandHash.resolve(command[0]);
+        if (executable == null && command[0].indexOf('/') < 0 && command[0].indexOf(File.separatorChar) < 0) {
+            // left to the system, a name that isn't on PATH could be found in the current directory
+            throw new IOException(command[0] + ": command not found");
+        }
+        if (executable != null && !CommandHash.startsByName()) {
+            // a process always sees the program it was started as in argv[0], so the path only
+            // takes the name's place where the system's own search could find something else
+            command = command.clone();
+            command[0] = executable;
+        }
+        ProcessBuilder pb = new ProcessBuilder(command);
+
+        // we always want to redirect the error stream
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        // only the ends of the pipeline talk to the shell's IO, everything else is a pipe
+        if (first) {
+            pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+        }
+        if (last) {
+            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        }
+
+        // redirected streams go straight between the process and the file, without passing
+        // through the shell (the files were already opened, just to check they can be)
+        if (stage.inputFile != null) {
+            pb.redirectInput(ProcessBuilder.Redirect.from(stage.inputFile.toFile()));
+        }
+        if (stage.outputFile != null) {
+            File file = stage.outputFile.toFile();
+            pb.redirectOutput(stage.appendOutput ? ProcessBuilder.Redirect.appendTo(file) : ProcessBuilder.Redirect.to(file));
+        }
+        if (stage.errorFile != null) {
+            File file = stage.errorFile.toFile();
+            pb.redirectError(stage.appendError ? ProcessBuilder.Redirect.appendTo(file) : ProcessBuilder.Redirect.to(file));
+        }
+        if (stage.errorToOutput) {
+            // into the output file, the next stage's pipe or the shell's output, whichever it is
+            pb.redirectErrorStream(true);
+        }
+        stage.closeRedirects();
+
+        // set the correct directory for the process
+        pb.directory(Shell.cwd().toFile());
+
+        long startNanos = System.nanoTime();
+        // the launcher's helper starts it if there is one, otherwise we do
+        stage.process = Launcher.start(pb);
+        if (stage.process == null) {
+            stage.process = pb.start();
+        }
+        // start() only returns once the child has been exec'd, so this is the whole fork/exec
+        long spawnNanos = System.nanoTime() - startNanos;
+        ShellMetrics.record(ShellMetrics.Phase.SPAWN, spawnNanos, stage.command[0], 0);
+
+        stage.record = ProcessAccounting.track(stage.process, stage.command, startNanos);
+        stage.exit = stage.record.thenApply(record -> {
+            ShellMetrics.record(ShellMetrics.Phase.CHILD, record.wallNanos - spawnNanos, stage.command[0], 0);
+            return record.exitCode;
+        });
+        return spawnNanos;
+    }
+
+    /**
+     * Starts a thread copying everything from one process's output into another's input.
+     * @param in The output of the earlier process
+     * @param out The input of the later process
+     * @param label What's being copied, for ShellMetrics
+     */
+    private void startPump(InputStream in, OutputStream out, String label) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        // the pump holds a single buffer, and blocks writing while the later process is busy,
+        // so a fast writer is held back by the pipe rather than filling the heap
+        IoThreads.start("pipeline-pump", () -> {
+            long startNanos = System.nanoTime();
+            try (in; out) {
+                long bytes = BytePump.transfer(in, out);
+                ShellMetrics.record(ShellMetrics.Phase.PIPE, System.nanoTime() - startNanos, label, bytes);
+            } catch (IOException e) {
+                // the later process exited without reading everything, closing our
+                // end of the pipe lets the earlier one know nobody is listening any more
+            } finally {
+                done.complete(null);
+            }
+        });
+        pumps.add(done);
+    }
+
+    /**
+     * Runs a builtin stage, then closes its streams so its neighbours see EOF.
+     * @param stage The builtin stage to run
+     */
+    private static void runBuiltin(Stage stage) {
+        ByteSink out = stage.out == null ? ByteSink.stdout() : new ByteSink(stage.out, true);
+        ReadableByteChannel in = stage.in;
+        if (!stage.builtin.readsInput()) {
+            // let the stage before us know straight away that nobody is listening
+            closeQuietly(in);
+            in = Channels.newChannel(InputStream.nullInputStream());
+        }
+
+        int status = 1;
+        try (out) {
+            status = stage.builtin.run(stage.command, in, out);
+        } catch (IOException e) {
+            // the next stage exited without reading everything, so there's nobody left to tell
+        } finally {
+            stage.exit.complete(status);
+            // closing our input tells the stage before us that nobody is listening any more
+            closeQuietly(stage.in);
+        }
+    }
+
+    /**
+     * Closes the input of a builtin (or a redirection file).
+     * @param channel The channel to close, which may be null
+     */
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing useful to do if the earlier stage already went away
+        }
+    }
+}
@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how much time and memory every child process of the shell used, for ptime.
+ *
+ * Wall time is measured with System.nanoTime from just before the process is started until
+ * it exits. CPU time and peak memory can only be read while a process is still running, so
+ * live children are sampled in the background (from /proc/[pid] on Linux), and each child
+ * keeps its last sample. That's why ptime calls them sampled: whatever a child used after its
+ * last sample is missing, and one that exits before it's ever sampled shows none at all.
+ *
+ * Everything here is safe to use from several threads, since the stages of a pipeline all
+ * run (and exit) at the same time.
+ */
+public class ProcessAccounting {
+    /**
+     * How often live children are sampled for CPU time and memory.
+     */
+    private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+    /**
+     * Clock ticks per second in /proc, which is fixed at 100 on every Linux the JDK runs on.
+     */
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    /**
+     * Value used for any measurement that isn't available on this platform.
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * Everything that was measured about a single child process.
+     */
+    public static class ChildRecord {
+        /**
+         * The name of the command that was run.
+         */
+        public final String command;
+
+        /**
+         * Wall-clock time from start to exit, in nanoseconds.
+         */
+        public final long wallNanos;
+
+        /**
+         * CPU time spent in user mode as last sampled, in nanoseconds (or UNKNOWN).
+         */
+        public final long userNanos;
+
+        /**
+         * CPU time spent in the kernel as last sampled, in nanoseconds (or UNKNOWN).
+         */
+        public final long systemNanos;
+
+        /**
+         * Largest resident set size seen, in kilobytes (or UNKNOWN).
+         */
+        public final long peakRssKilobytes;
+
+        /**
+         * The exit code of the process.
+         */
+        public final int exitCode;
+
+        ChildRecord(String command, long wallNanos, long userNanos, long systemNanos, long peakRssKilobytes, int exitCode) {
+            this.command = command;
+            this.wallNanos = wallNanos;
+            this.userNanos = userNanos;
+            this.systemNanos = systemNanos;
+            this.peakRssKilobytes = peakRssKilobytes;
+            this.exitCode = exitCode;
+        }
+    }
+
+    /**
+     * A child that is still running, along with the latest sample taken of it.
+     */
+    private static class LiveChild {
+        final Process process;
+        final String command;
+        final long startNanos;
+        volatile long userNanos = UNKNOWN;
+        volatile long systemNanos = UNKNOWN;
+        volatile long peakRssKilobytes = UNKNOWN;
+
+        LiveChild(Process process, String command, long startNanos) {
+            this.process = process;
+            this.command = command;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Whether /proc is available to read the user/system split and memory from.
+     */
+    private static final boolean procAvailable = Files.isReadable(Path.of("/proc/self/stat"));
+
+    /**
+     * Children that are running right now.
+     */
+    private static final Set<LiveChild> liveChildren = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Every child that has finished, in the order they finished.
+     */
+    private static final List<ChildRecord> records = new ArrayList<>();
+
+    /**
+     * Running totals, so the common case of a bare ptime doesn't have to walk every record.
+     */
+    private static final LongAdder totalWallNanos = new LongAdder();
+    private static final LongAdder totalUserNanos = new LongAdder();
+    private static final LongAdder totalSystemNanos = new LongAdder();
+
+    /**
+     * Thread that samples live children, and the task it runs while there are any.
+     */
+    private static ScheduledExecutorService sampler;
+    private static ScheduledFuture<?> samplerTask;
+
+    /**
+     * Starts keeping track of a child process.
+     * @param process The process that was just started
+     * @param command The command the process was started with
+     * @param startNanos System.nanoTime from just before the process was started
+     * @return A future completed with the child's record once it has exited
+     */
+    public static CompletableFuture<ChildRecord> track(Process process, String[] command, long startNanos) {
+        LiveChild child = new LiveChild(process, command[0], startNanos);
+        liveChildren.add(child);
+        startSampling();
+
+        // exit time is taken as soon as the JDK notices the exit, not whenever someone
+        // gets around to waiting for it (so time spent feeding the pipe isn't counted)
+        return process.onExit().thenApply(exited -> finish(child, System.nanoTime()));
+    }
+
+    /**
+     * Clears every record and total, as if no child had been run yet.
+     */
+    public static synchronized void reset() {
+        records.clear();
+        totalWallNanos.reset();
+        totalUserNanos.reset();
+        totalSystemNanos.reset();
+    }
+
+    /**
+     * Returns the total wall time of every child process, in seconds.
+     * @return Total wall time
+     */
+    public static double totalWallSeconds() {
+        return totalWallNanos.sum() / 1e9;
+    }
+
+    /**
+     * Writes the totals over every child process.
+     * @param out Where to write the totals
+     * @throws IOException If the output couldn't be written
+     */
+    public static void printTotals(ByteSink out) throws IOException {
+        int count;
+        synchronized (ProcessAccounting.class) {
+            count = records.size();
+        }
+        out.println("Total time in child processes: " + String.format("%.4f", totalWallSeconds()) + " seconds");
+        out.println("  sampled user " + seconds(totalUserNanos.sum()) + ", sampled sys " + seconds(totalSystemNanos.sum())
+                + ", " + count + " process" + (count == 1 ? "" : "es"));
+    }
+
+    /**
+     * Writes the totals for every command, grouped by the command's name.
+     * @param out Where to write the breakdown
+     * @throws IOException If the output couldn't be written
+     */
+    public static void printBreakdown(ByteSink out) throws IOException {
+        // [count, wall, user, sys, max rss, failures] per command, sorted by name
+        Map<String, long[]> byCommand = new TreeMap<>();
+        for (ChildRecord record : snapshot()) {
+            long[] totals = byCommand.computeIfAbsent(record.command, k -> new long[]{0, 0, 0, 0, UNKNOWN, 0});
+            totals[0]++;
+            totals[1] += record.wallNanos;
+            totals[2] += Math.max(record.userNanos, 0);
+            totals[3] += Math.max(record.systemNanos, 0);
+            totals[4] = Math.max(totals[4], record.peakRssKilobytes);
+            totals[5] += record.exitCode == 0 ? 0 : 1;
+        }
+
+        out.println(String.format("%-20s %6s %12s %12s %12s %10s %6s", "command", "runs", "wall", "sampled user", "sampled sys", "max rss", "failed"));
+        for (Map.Entry<String, long[]> entry : byCommand.entrySet()) {
+            long[] totals = entry.getValue();
+            out.println(String.format("%-20s %6d %12s %12s %12s %10s %6d", entry.getKey(), totals[0],
+                    seconds(totals[1]), seconds(totals[2]), seconds(totals[3]), kilobytes(totals[4]), totals[5]));
+        }
+    }
+
+    /**
+     * Writes percentiles of the wall time of every child process.
+     * @param out Where to write the percentiles
+     * @throws IOException If the output couldn't be written
+     */
+    public static void printPercentiles(ByteSink out) throws IOException {
+        List<ChildRecord> snapshot = snapshot();
+        if (snapshot.isEmpty()) {
+            out.println("No child processes have been run");
+            return;
+        }
+
+        long[] wall = new long[snapshot.size()];
+        for (int i = 0; i < wall.length; i++) {
+            wall[i] = snapshot.get(i).wallNanos;
+        }
+        Arrays.sort(wall);
+
+        out.println("Wall time over " + wall.length + " child process" + (wall.length == 1 ? "" : "es") + ":");
+        out.println("  min " + seconds(wall[0]) + ", p50 " + seconds(percentile(wall, 50))
+                + ", p90 " + seconds(percentile(wall, 90)) + ", p99 " + seconds(percentile(wall, 99))
+                + ", max " + seconds(wall[wall.length - 1]));
+    }
+
+    /**
+     * Turns a finished child into a record and adds it to the totals.
+     * @param child The child that exited
+     * @param endNanos System.nanoTime from when the exit was noticed
+     * @return The child's record
+     */
+    private static ChildRecord finish(LiveChild child, long endNanos) {
+        liveChildren.remove(child);
+
+        long userNanos = child.userNanos;
+        long systemNanos = child.systemNanos;
+        long peakRssKilobytes = child.peakRssKilobytes;
+        if (child.process instanceof Launcher.LaunchedProcess) {
+            // the launcher's helper measured it, since it's the helper's child rather than ours
+            Launcher.LaunchedProcess launched = (Launcher.LaunchedProcess) child.process;
+            userNanos = Math.max(userNanos, launched.userNanos);
+            systemNanos = Math.max(systemNanos, launched.systemNanos);
+            peakRssKilobytes = Math.max(peakRssKilobytes, launched.peakRssKilobytes);
+        }
+        synchronized (ProcessAccounting.class) {
+            ChildRecord record = new ChildRecord(child.command, endNanos - child.startNanos, userNanos, systemNanos,
+                    peakRssKilobytes, child.process.exitValue());
+            records.add(record);
+            totalWallNanos.add(record.wallNanos);
+            totalUserNanos.add(Math.max(userNanos, 0));
+            totalSystemNanos.add(Math.max(systemNanos, 0));
+            stopSamplingIfIdle();
+
+            return record;
+        }
+    }
+
+    /**
+     * Takes a copy of every record so far.
+     * @return The records
+     */
+    private static synchronized List<ChildRecord> snapshot() {
+        return new ArrayList<>(records);
+    }
+
+    /**
+     * Starts sampling live children, if that isn't happening already.
+     */
+    private static synchronized void startSampling() {
+        if (samplerTask != null) {
+            return;
+        }
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ptime-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        samplerTask = sampler.scheduleAtFixedRate(ProcessAccounting::sampleAll, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling once no children are left, so an idle shell doesn't keep waking up.
+     */
+    private static synchronized void stopSamplingIfIdle() {
+        if (samplerTask != null && liveChildren.isEmpty()) {
+            samplerTask.cancel(false);
+            samplerTask = null;
+        }
+    }
+
+    /**
+     * Records the current CPU time and memory of every live child.
+     */
+    private static void sampleAll() {
+        for (LiveChild child : liveChildren) {
+            if (procAvailable) {
+                sampleProc(child);
+            } else {
+                // elsewhere only the combined CPU time is available, so count it all as user time
+                child.process.info().totalCpuDuration().map(Duration::toNanos).ifPresent(cpu -> child.userNanos = cpu);
+            }
+        }
+    }
+
+    /**
+     * Reads the CPU times and peak memory of a live child from /proc.
+     * @param child The child to sample
+     */
+    private static void sampleProc(LiveChild child) {
+        long pid = child.process.pid();
+        try {
+            long[] times = parseStatTimes(Files.readString(Path.of("/proc/" + pid + "/stat")), 13);
+            if (times != null) {
+                child.userNanos = times[0];
+                child.systemNanos = times[1];
+            }
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    child.peakRssKilobytes = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the child exited between being listed and being read, keep the last sample
+        }
+    }
+
+    /**
+     * Pulls two adjacent clock-tick fields out of a /proc/[pid]/stat line.
+     * @param stat The contents of the stat file
+     * @param field The 0-based index of the first field (counting the pid as field 0)
+     * @return The two fields converted to nanoseconds, or null if the line was malformed
+     */
+    private static long[] parseStatTimes(String stat, int field) {
+        // the command name is in parentheses and may contain spaces, so count from after it
+        int nameEnd = stat.lastIndexOf(')');
+        if (nameEnd < 0) {
+            return null;
+        }
+        String[] fields = stat.substring(nameEnd + 2).trim().split(" ");
+        // fields[0] is the state, which is field 2 of the full line
+        int index = field - 2;
+        if (fields.length <= index + 1) {
+            return null;
+        }
+
+        long nanosPerTick = 1_000_000_000L / CLOCK_TICKS_PER_SECOND;
+        return new long[]{Long.parseLong(fields[index]) * nanosPerTick, Long.parseLong(fields[index + 1]) * nanosPerTick};
+    }
+
+    /**
+     * Finds a percentile in sorted values using the nearest-rank method.
+     * @param sorted The values, sorted in ascending order
+     * @param percent The percentile to find, from 1 to 100
+     * @return The value at that percentile
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Formats a number of nanoseconds as seconds.
+     * @param nanos The time in nanoseconds (or UNKNOWN)
+     * @return The formatted time
+     */
+    private static String seconds(long nanos) {
+        return nanos == UNKNOWN ? "-" : String.format("%.4fs", nanos / 1e9);
+    }
+
+    /**
+     * Formats a size in kilobytes.
+     * @param kilobytes The size (or UNKNOWN)
+     * @return The formatted size
+     */
+    private static String kilobytes(long kilobytes) {
+        return kilobytes == UNKNOWN ? "-" : kilobytes + "K";
+    }
+}
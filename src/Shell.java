@@ -1,9 +1,13 @@
 import java.io.*;
-import java.lang.reflect.Array;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,337 +17,400 @@ import java.util.regex.Pattern;
  */
 public class Shell {
     /**
-     * Static int holding the total time spent in child processes.
+     * The exit status of the last command that was executed.
      */
-    public static double timeSpentInChildProcesses = 0.0;
+    public static volatile int lastExitStatus = 0;
 
     /**
-     * List of all shell commands.
+     * Whether the shell is reading commands from a user (rather than a script or -c).
      */
-    public static ArrayList<String> commandHistory;
+    public static boolean interactive = true;
+
+    /**
+     * The directory the shell is in, which cd keeps in step with the user.dir property.
+     */
+    private static volatile Path currentDirectory = Paths.get(System.getProperty("user.dir")).toAbsolutePath().normalize();
+
+    /**
+     * Size of the buffer scripts are read through.
+     */
+    private static final int SCRIPT_BUFFER_SIZE = 64 * 1024;
 
     /**
      * The main loop of this program.
-     * @param args Command-line arguments (they're ignored for this program)
+     *
+     * With no arguments the shell is interactive. "-c command" runs the given command(s)
+     * and "script" runs every line of a script file, both without printing a prompt.
+     * Adding -e before either stops at the first command that fails.
+     *
+     * @param args Command-line arguments
      */
     public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        commandHistory = new ArrayList<>();
+        boolean stopOnError = false;
+        int argIndex = 0;
+        if (argIndex < args.length && args[argIndex].equals("-e")) {
+            stopOnError = true;
+            argIndex++;
+        }
+
+        interactive = argIndex >= args.length;
+        // the launcher's helper takes a while to start, so it's started first
+        Launcher.startIfRequested();
+        // only commands typed by a user are kept between sessions
+        History.open(interactive);
+
+        if (!interactive) {
+            if (args[argIndex].equals("-c")) {
+                if (argIndex + 1 >= args.length) {
+                    System.err.println("Usage: Shell [-e] [-c command | script]");
+                    System.exit(2);
+                }
+                System.exit(runScript(new BufferedReader(new StringReader(args[argIndex + 1])), stopOnError));
+            }
+
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(args[argIndex])), SCRIPT_BUFFER_SIZE)) {
+                System.exit(runScript(reader, stopOnError));
+            } catch (IOException e) {
+                System.err.println("Error: cannot read script " + args[argIndex]);
+                System.exit(127);
+            }
+        }
 
         while(true) {
-            // get user input
-            System.out.print("[" + System.getProperty("user.dir") + "]: ");
+            // let the user know about background jobs that finished while they were typing
+            JobTable.printNotifications();
 
-            String[] command = null;
+            // get user input, with editing and tab completion when there's a terminal
+            String line = null;
 
             try {
-                command = splitCommand(scanner.nextLine());
-            } catch (NoSuchElementException e) {
-                // this exception will be thrown if user enters EOF character
-                // if this happens, just exit the program
+                line = LineEditor.readLine("[" + System.getProperty("user.dir") + "]: ");
+            } catch (IOException e) {
+                // the input is gone, which is as good as an EOF
+            }
+            if (line == null) {
+                // the user entered the EOF character, so just exit the program
                 exit();
             }
 
-            // by this point, command shouldn't be null, so if it is then throw an exception
-            assert command != null;
+            // by this point, line shouldn't be null, so if it is then throw an exception
+            assert line != null;
 
-            // if for some reason, the user didn't enter a command, treat is as a blank line and do nothing
-            if (command.length != 0) {
-                executeCommand(command, true);
-            }
+            // a blank line (or a comment) is parsed into nothing, and so does nothing
+            executeCommand(line, true);
         }
     }
 
     /**
-     * Given a command, execute it.
-     * @param command The command to execute
-     * @param appendToHistory Boolean determining whether to store command in history or not
+     * Runs every command read from a script, without printing any prompts.
+     *
+     * Blank lines and everything after an unquoted # are ignored, and a line ending in a
+     * backslash (that isn't quoted, escaped or in a comment) is joined with the line after it.
+     *
+     * @param reader Where to read the commands from
+     * @param stopOnError Whether to stop at the first command that fails
+     * @return The exit status of the last command that was run
      */
-    public static void executeCommand(String[] command, boolean appendToHistory) {
-        // add full command to history unless command called from ^ command
-        if (appendToHistory) {
-            StringBuilder fullTextOfCommand = new StringBuilder();
-            for (int i = 0; i < command.length; i++) {
-                fullTextOfCommand.append(command[i]);
-                // don't append a space if this is last command
-                if (i < command.length - 1) {
-                    fullTextOfCommand.append(" ");
+    public static int runScript(BufferedReader reader, boolean stopOnError) {
+        StringBuilder pendingLine = new StringBuilder();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                pendingLine.append(line);
+                if (Lexer.continues(pendingLine)) {
+                    // line continuation, keep reading until the command is complete
+                    pendingLine.setLength(pendingLine.length() - 1);
+                    continue;
+                }
+
+                boolean ranCommand = executeCommand(pendingLine.toString(), true);
+                pendingLine.setLength(0);
+                if (ranCommand && stopOnError && lastExitStatus != 0) {
+                    return lastExitStatus;
                 }
             }
-            commandHistory.add(fullTextOfCommand.toString());
-        }
 
-        boolean areWePiping = false;
-        for (String s : command) {
-            if (s.equals("|")) {
-                areWePiping = true;
-                break;
+            // like other shells, a \ on the last line of the script has nothing left to join
+            // onto, so the command runs as it is
+            if (pendingLine.length() > 0) {
+                executeCommand(pendingLine.toString(), true);
             }
+        } catch (IOException e) {
+            System.err.println("Error reading script: " + e.getMessage());
+            return 1;
         }
 
-        if (!areWePiping) {
-            if (command[0].equals("exit")) {
-                exit();
-            } else if (command[0].equals("ptime")) {
-                System.out.println(ptime());
-            } else if (command[0].equals("list")) {
-                System.out.println(list());
-            } else if (command[0].equals("cd")) {
-                System.out.print(cd(command));
-            } else if (command[0].equals("here")) {
-                System.out.println(here());
-            } else if (command[0].equals("mdir")) {
-                if (command.length == 1) {
-                    System.out.println("mdir: missing operand");
-                } else {
-                    System.out.print(mdir(command[1]));
-                }
-            } else if (command[0].equals("rdir")) {
-                if (command.length == 1) {
-                    System.out.println("rdir: missing operand");
-                } else {
-                    System.out.print(rdir(command[1]));
-                }
-            } else if (command[0].equals("history")) {
-                System.out.println(history());
-            } else if (command[0].equals("^")) {
-                if (command.length == 1) {
-                    System.out.println("^: missing operand");
-                } else {
-                    executeHistoryCommand(command[1]);
-                }
-            }
+        return lastExitStatus;
+    }
 
-            // if we get to this point, run it as a generic command
-            else {
-                runProcess(false, false, "", command);
-            }
-        } else {
-            // if we are piping, things get more complicated
-            // must run first command, and then send its output to second program
-            String[] firstCommand;
-            String[] secondCommand;
-            ArrayList<String> firstCommandArrayList = new ArrayList<>();
-            ArrayList<String> secondCommandArrayList = new ArrayList<>();
-
-            // separate the commands into two separate arrays
-            boolean onSecondCommand = false;
-            for (String s : command) {
-                if (s.equals("|")) {
-                    onSecondCommand = true;
-                } else if (onSecondCommand) {
-                    secondCommandArrayList.add(s);
-                } else {
-                    firstCommandArrayList.add(s);
-                }
-            }
+    /**
+     * Given a command line, parse it and execute it.
+     *
+     * The exit status is left in lastExitStatus. A blank line or a comment runs nothing
+     * and leaves the status alone, and a line that can't be parsed has status 2.
+     *
+     * @param line The command line to execute, as typed
+     * @param appendToHistory Boolean determining whether to store command in history or not
+     * @return True if the line had anything in it to run (or report an error for)
+     */
+    public static boolean executeCommand(String line, boolean appendToHistory) {
+        try (ByteSink out = ByteSink.stdout()) {
+            return executeCommand(line, appendToHistory, out);
+        } catch (IOException e) {
+            // standard output went away, so there's nowhere to report this either
+            lastExitStatus = 1;
+            return true;
+        }
+    }
 
-            firstCommand = firstCommandArrayList.toArray(new String[0]);
-            secondCommand = secondCommandArrayList.toArray(new String[0]);
+    /**
+     * Given a command line, parse it and execute it, with its output going to a sink.
+     * @param line The command line to execute, as typed
+     * @param appendToHistory Boolean determining whether to store command in history or not
+     * @param out Where the output and errors of the commands go (external commands write to
+     * standard output themselves if that's where the sink goes)
+     * @return True if the line had anything in it to run (or report an error for)
+     * @throws IOException If the output couldn't be written
+     */
+    static boolean executeCommand(String line, boolean appendToHistory, ByteSink out) throws IOException {
+        CommandLine commandLine;
+        long parseStart = System.nanoTime();
+        try {
+            commandLine = Parser.parse(line);
+        } catch (SyntaxException e) {
+            commandLine = null;
+            out.println("Error: " + e.getMessage());
+        }
+        ShellMetrics.record(ShellMetrics.Phase.PARSE, parseStart, line);
+        if (commandLine != null && commandLine.isEmpty()) {
+            return false;
+        }
 
-            String firstCommandOutput = "";
+        // add full command to history unless command called from ^ command
+        if (appendToHistory) {
+            History.add(line.trim());
+        }
 
-            if (firstCommand[0].equals("exit")) {
-                exit();
-            } else if (firstCommand[0].equals("ptime")) {
-                firstCommandOutput = ptime();
-                System.out.println(firstCommandOutput);
-            } else if (firstCommand[0].equals("list")) {
-                firstCommandOutput = list();
-                System.out.println(firstCommandOutput);
-            } else if (firstCommand[0].equals("cd")) {
-                firstCommandOutput = cd(firstCommand);
-                System.out.print(firstCommandOutput);
-            } else if (firstCommand[0].equals("here")) {
-                firstCommandOutput = here();
-                System.out.println(firstCommandOutput);
-            } else if (firstCommand[0].equals("mdir")) {
-                if (firstCommand.length == 1) {
-                    System.out.println("mdir: missing operand");
-                } else {
-                    firstCommandOutput = mdir(firstCommand[1]);
-                    System.out.print(firstCommandOutput);
-                }
-            } else if (firstCommand[0].equals("rdir")) {
-                if (firstCommand.length == 1) {
-                    System.out.println("rdir: missing operand");
-                } else {
-                    firstCommandOutput = rdir(firstCommand[1]);
-                    System.out.print(firstCommandOutput);
-                }
-            } else if (firstCommand[0].equals("history")) {
-                firstCommandOutput = history();
-                System.out.println(firstCommandOutput);
-            } else if (firstCommand[0].equals("^")) {
-                if (firstCommand.length == 1) {
-                    System.out.println("^: missing operand");
-                } else {
-                    executeHistoryCommand(firstCommand[1]);
-                }
-            }
-            // if we get to this point, run it as a generic command
-            else {
-                firstCommandOutput = runProcess(true, false, "", firstCommand);
-            }
+        lastExitStatus = commandLine == null ? 2 : execute(commandLine, out);
+        ShellMetrics.flushTrace();
+        return true;
+    }
 
-            // now, run the second command
-            // our shell commands don't care about any of the piping stuff, so we
-            // only need to take care of piping for the generic command
+    /**
+     * Executes a command line that has already been parsed.
+     *
+     * Every and-or list runs in turn, as if they were on lines of their own, and $? is updated
+     * after every pipeline so the next one can see how it went.
+     *
+     * @param commandLine The command line to execute
+     * @param out Where the output of the commands goes
+     * @return The exit status of the last pipeline that ran
+     * @throws IOException If the output couldn't be written
+     */
+    public static int execute(CommandLine commandLine, ByteSink out) throws IOException {
+        int status = lastExitStatus;
+        for (CommandLine.AndOr list : commandLine.lists) {
+            status = execute(list, out);
+            lastExitStatus = status;
+        }
+        return status;
+    }
 
-            if (secondCommand[0].equals("exit")) {
-                exit();
-            } else if (secondCommand[0].equals("ptime")) {
-                System.out.println(ptime());
-            } else if (secondCommand[0].equals("list")) {
-                System.out.println(list());
-            } else if (secondCommand[0].equals("cd")) {
-                System.out.print(cd(secondCommand));
-            } else if (secondCommand[0].equals("here")) {
-                System.out.println(here());
-            } else if (secondCommand[0].equals("mdir")) {
-                if (secondCommand.length == 1) {
-                    System.out.println("mdir: missing operand");
-                } else {
-                    System.out.print(mdir(secondCommand[1]));
-                }
-            } else if (secondCommand[0].equals("rdir")) {
-                if (secondCommand.length == 1) {
-                    System.out.println("rdir: missing operand");
-                } else {
-                    System.out.print(rdir(secondCommand[1]));
-                }
-            } else if (secondCommand[0].equals("history")) {
-                System.out.println(history());
-            } else if (secondCommand[0].equals("^")) {
-                if (secondCommand.length == 1) {
-                    System.out.println("^: missing operand");
-                } else {
-                    executeHistoryCommand(secondCommand[1]);
-                }
+    /**
+     * Executes a chain of pipelines joined by && and ||.
+     *
+     * A pipeline after && only runs if the status so far is 0, and one after || only if it
+     * isn't, so "a || b && c" runs c when either a or b succeeds.
+     *
+     * @param list The and-or list
+     * @param out Where the output of the commands goes
+     * @return The exit status of the last pipeline that ran
+     * @throws IOException If the output couldn't be written
+     */
+    private static int execute(CommandLine.AndOr list, ByteSink out) throws IOException {
+        if (list.background) {
+            // a background job is a single pipeline, there's nothing to run the rest of a chain
+            if (list.pipelines.size() > 1) {
+                out.println("Error: && and || can't be run in the background");
+                return 2;
             }
+            return JobTable.launch(list.pipelines.get(0).expand(lastExitStatus), list.toString());
+        }
 
-            // if we get to this point, run it as a generic command
-            else {
-                runProcess(false, true, firstCommandOutput, secondCommand);
+        int status = execute(list.pipelines.get(0), out);
+        for (int i = 1; i < list.pipelines.size(); i++) {
+            if ((list.connectors.get(i - 1) == CommandLine.Connector.AND_IF) == (status == 0)) {
+                lastExitStatus = status;
+                status = execute(list.pipelines.get(i), out);
             }
         }
+        return status;
     }
 
     /**
-     * Exits the program gracefully.
+     * Executes a single pipeline in the foreground.
+     * @param stages The pipeline, with $? still in it
+     * @param out Where the output of the pipeline goes
+     * @return The exit status of the pipeline
+     * @throws IOException If the output couldn't be written
      */
-    public static void exit() {
-        // add blank line to make it more "pretty"
-        System.out.println("");
-        System.exit(0);
+    private static int execute(CommandLine.PipelineNode stages, ByteSink out) throws IOException {
+        long dispatchStart = System.nanoTime();
+        CommandLine.PipelineNode pipeline = stages.expand(lastExitStatus);
+
+        String[] command = pipeline.commands.get(0).words;
+        Builtin builtin = Builtins.forCommand(command, interactive);
+        if (pipeline.commands.size() == 1 && builtin != null && !pipeline.hasRedirects()) {
+            // a lone builtin runs right here, so things like cd affect the shell itself
+            ShellMetrics.record(ShellMetrics.Phase.DISPATCH, dispatchStart, command[0]);
+            long builtinStart = System.nanoTime();
+            try {
+                // the user's typing belongs to the prompt, but a script's builtin gets the shell's input
+                ReadableByteChannel in = interactive ? Channels.newChannel(InputStream.nullInputStream()) : stdin();
+                int status = builtin.run(command, in, out);
+                // what it wrote comes out before whatever runs next
+                out.flush();
+                return status;
+            } catch (IOException e) {
+                // standard output went away, so there's nowhere to report this either
+                return 1;
+            } finally {
+                ShellMetrics.record(ShellMetrics.Phase.BUILTIN, builtinStart, command[0]);
+            }
+        }
+
+        // anything else is run as a pipeline (which may only have a single stage), writing
+        // straight to standard output if that's where our output goes anyway
+        out.flush();
+        return Pipeline.run(pipeline, out.isStdout() ? null : out.asChannel());
     }
 
     /**
-     * Returns the total amount of time spent in child processes.
-     * @return Time spent in child processes
+     * Exits the program gracefully.
      */
-    public static String ptime() {
-        return "Total time in child processes: " + String.format("%.4f", timeSpentInChildProcesses) + " seconds";
+    public static void exit() {
+        if (interactive) {
+            // add blank line to make it more "pretty"
+            System.out.println("");
+        }
+        System.exit(lastExitStatus);
     }
 
     /**
-     * Returns files and folders in a directory with detailed information.
-     * @return List of files
+     * Exits the program gracefully, with the given exit status or that of the last command.
+     * @param command The exit command (including an optional exit status)
+     * @param out Where an error is written (and everything before it is flushed from)
+     * @throws IOException If the output couldn't be written
      */
-    public static String list() {
-        /*
-        The first four characters indicate: directory, user can read, user can write, user can execute.
-        The next 10 characters contains the size of the file in bytes, right justified (no commas).
-        The next field is the date of last modification for the file; follow the example formatting.
-        The last field is the name of the file.
-         */
-        File currentDirectory = new File(System.getProperty("user.dir"));
-        File[] arrayOfFiles = currentDirectory.listFiles();
-        ArrayList<String> listOfFiles = new ArrayList<>();
-        for (File file : arrayOfFiles) {
-            String filePermissions = "";
-            String fileSize = "";
-            String fileModified = "";
-            String fileName = "";
-
-            StringBuilder filePermissionsSB = new StringBuilder();
-            if (file.isDirectory()) {
-                filePermissionsSB.append("d");
-            } else {
-                filePermissionsSB.append("-");
-            }
-            if (file.canRead()) {
-                filePermissionsSB.append("r");
-            } else {
-                filePermissionsSB.append("-");
-            }
-            if (file.canWrite()) {
-                filePermissionsSB.append("w");
-            } else {
-                filePermissionsSB.append("-");
-            }
-            if (file.canExecute()) {
-                filePermissionsSB.append("x");
-            } else {
-                filePermissionsSB.append("-");
+    public static void exit(String[] command, ByteSink out) throws IOException {
+        int status = lastExitStatus;
+        if (command.length > 1) {
+            try {
+                status = Integer.parseInt(command[1]);
+            } catch (NumberFormatException e) {
+                out.println("Error: " + command[1] + " is not int");
+                status = 2;
             }
+        }
+        // nothing is flushed once System.exit() has been called
+        out.flush();
 
-            filePermissions = filePermissionsSB.toString();
-
-            fileSize = String.format("%10s", file.length());
-
-            // Date should be MMM dd, yyyy hh:mm
-            SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy HH:mm");
-            fileModified = sdf.format(file.lastModified());
-
-            fileName = file.getName();
-
-            listOfFiles.add(filePermissions + " " + fileSize + " " + fileModified + " " + fileName);
+        if (interactive) {
+            // add blank line to make it more "pretty"
+            System.out.println("");
         }
+        System.exit(status);
+    }
 
-        StringBuilder returnStringSB = new StringBuilder();
-        for (int i = 0; i < listOfFiles.size(); i++) {
-            returnStringSB.append(listOfFiles.get(i));
-            // don't add line separator for last entry
-            if (i < listOfFiles.size() - 1) {
-                returnStringSB.append(System.getProperty("line.separator"));
-            }
+    /**
+     * Writes the amount of time spent in child processes.
+     *
+     * With no options this is the total time, -v breaks it down per command and -p shows
+     * percentiles of how long each child took.
+     *
+     * @param command The ptime command (including options)
+     * @param out Where the times should be written
+     * @return 0, or 1 if the option wasn't recognised
+     * @throws IOException If the times couldn't be written
+     */
+    public static int ptime(String[] command, ByteSink out) throws IOException {
+        if (command.length == 1) {
+            ProcessAccounting.printTotals(out);
+        } else if (command[1].equals("-v")) {
+            ProcessAccounting.printBreakdown(out);
+        } else if (command[1].equals("-p")) {
+            ProcessAccounting.printPercentiles(out);
+        } else {
+            out.println("ptime: unknown option " + command[1] + " (expected -v or -p)");
+            return 1;
         }
 
-        return returnStringSB.toString();
+        return 0;
     }
 
     /**
      * Change the working directory of the shell.
      * @param directory The directory that the shell should try to switch to
-     * @return empty string
+     * @param out Where errors are written
+     * @return 0, or 1 if the directory doesn't exist
+     * @throws IOException If an error couldn't be written
      */
-    public static String cd(String... directory) {
+    public static int cd(String[] directory, ByteSink out) throws IOException {
         // directory[0] will always be the string "cd"
         // if directory is of length 1, cd to home
         // else, follow the cd path
+        Path target;
         if (directory.length == 1) {
-            System.setProperty("user.dir", System.getProperty("user.home"));
+            target = Paths.get(System.getProperty("user.home"));
         } else if (directory[1].equals("..")) {
-            try {
-                System.setProperty("user.dir", new File(System.getProperty("user.dir")).getParent());
-            } catch (NullPointerException npe) {
-                // NPE if trying to cd out of root
-                // don't do anything instead of crashing
+            target = currentDirectory.getParent();
+            if (target == null) {
+                // trying to cd out of root, don't do anything
+                return 0;
             }
         } else if (directory[1].equals(".")) {
             // do nothing if cd into self
+            return 0;
         } else {
-            File directoryToCDTo = new File(System.getProperty("user.dir") + File.separator + directory[1]);
-            if (directoryToCDTo.exists() && directoryToCDTo.isDirectory()) {
-                System.setProperty("user.dir", System.getProperty("user.dir") + File.separator + directory[1]);
-            } else {
-                System.out.println("Error: directory " + directory[1] + " does not exist");
+            try {
+                target = currentDirectory.resolve(directory[1]).normalize();
+            } catch (InvalidPathException e) {
+                target = null;
+            }
+            // a single stat says both whether it exists and whether it's a directory
+            if (target == null || !Files.isDirectory(target)) {
+                out.println("Error: directory " + directory[1] + " does not exist");
+                return 1;
             }
         }
 
-        // no need to return anything from cd
-        return "";
+        currentDirectory = target;
+        System.setProperty("user.dir", target.toString());
+        return 0;
+    }
+
+    /**
+     * Returns the directory the shell is in, without parsing user.dir again.
+     * @return The absolute path of the current directory
+     */
+    public static Path cwd() {
+        return currentDirectory;
+    }
+
+    /**
+     * Returns the shell's own input, for a builtin at the start of a script's pipeline (such as
+     * sort reading what was piped into the shell).
+     * @return The input, which stays open when the channel is closed
+     */
+    static ReadableByteChannel stdin() {
+        // System.in rather than the file descriptor, so nothing it has already read is lost
+        return Channels.newChannel(new FilterInputStream(System.in) {
+            @Override
+            public void close() {
+                // the shell may still want to read the rest
+            }
+        });
     }
 
     /**
@@ -354,64 +421,153 @@ public class Shell {
         return System.getProperty("user.dir");
     }
 
+    /**
+     * Creates directories given their names.
+     *
+     * With -p, any missing parent directories are created too, and a directory that
+     * already exists isn't an error.
+     *
+     * @param command The mdir command (including -p and the names)
+     * @param out Where errors are written
+     * @return 0, or 1 if any directory couldn't be created
+     * @throws IOException If an error couldn't be written
+     */
+    public static int mdir(String[] command, ByteSink out) throws IOException {
+        boolean parents = command[1].equals("-p");
+        int first = parents ? 2 : 1;
+        if (first >= command.length) {
+            out.println(command[0] + ": missing operand");
+            return 1;
+        }
+
+        int status = 0;
+        for (int i = first; i < command.length; i++) {
+            if (!parents) {
+                status |= mdir(command[i], out);
+                continue;
+            }
+            try {
+                Files.createDirectories(currentDirectory.resolve(command[i]));
+            } catch (FileAlreadyExistsException e) {
+                out.println("Error: " + e.getFile() + " already exists as a file");
+                status = 1;
+            } catch (IOException e) {
+                out.println("Error creating directory " + command[i]);
+                status = 1;
+            }
+        }
+
+        return status;
+    }
+
     /**
      * Creates a directory given a string input
      * @param directoryName Name of directory to be created
-     * @return Empty string
+     * @param out Where errors are written
+     * @return 0, or 1 if the directory couldn't be created
+     * @throws IOException If an error couldn't be written
      */
-    public static String mdir(String directoryName) {
+    public static int mdir(String directoryName, ByteSink out) throws IOException {
         File newDirectory = new File(System.getProperty("user.dir") + File.separator + directoryName);
         if (newDirectory.exists()) {
             if (newDirectory.isFile()) {
-                System.out.println("Error: " + directoryName + " already exists as a file");
+                out.println("Error: " + directoryName + " already exists as a file");
             } else {
-                System.out.println("Error: directory " + directoryName + " already exists");
+                out.println("Error: directory " + directoryName + " already exists");
             }
+            return 1;
         } else {
             if (!newDirectory.mkdir()) {
-                System.out.println("Error creating directory " + directoryName);
+                out.println("Error creating directory " + directoryName);
+                return 1;
             }
         }
 
-        // return empty string
-        return "";
+        return 0;
     }
 
     /**
-     * Removes a directory (or a file) given a string input
-     * @param directoryName Name of directory (or file) to be removed
-     * @return Empty string
+     * Removes directories (or files) given their names.
+     *
+     * With -r, directories are removed along with everything in them, using every core.
+     * Links are removed rather than followed, and the directory the shell is in (or any
+     * directory above it) is never removed.
+     *
+     * @param command The rdir command (including -r and the names)
+     * @param out Where errors are written
+     * @return 0, or 1 if anything couldn't be removed
+     * @throws IOException If an error couldn't be written
      */
-    public static String rdir(String directoryName) {
-        File directoryToRemove = new File(System.getProperty("user.dir") + File.separator + directoryName);
-        if (directoryToRemove.exists()) {
-            if (!directoryToRemove.delete()) {
-                System.out.println("Error deleting " + directoryName + " (directory must be empty)");
+    public static int rdir(String[] command, ByteSink out) throws IOException {
+        boolean recursive = command[1].equals("-r");
+        int first = recursive ? 2 : 1;
+        if (first >= command.length) {
+            out.println(command[0] + ": missing operand");
+            return 1;
+        }
+
+        int status = 0;
+        Path here = currentDirectory;
+        for (int i = first; i < command.length; i++) {
+            if (!recursive) {
+                status |= rdir(command[i], out);
+                continue;
+            }
+
+            Path name = Paths.get(command[i]).getFileName();
+            if (name != null && (name.toString().equals(".") || name.toString().equals(".."))) {
+                // like rm, don't guess what "a/.." was meant to remove
+                out.println("Error: refusing to remove . or .. (" + command[i] + ")");
+                status = 1;
+                continue;
+            }
+            Path target = here.resolve(command[i]).normalize();
+            if (here.startsWith(target)) {
+                out.println("Error: refusing to remove " + command[i] + " (the current directory is inside it)");
+                status = 1;
+                continue;
+            }
+            if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                out.println("Error: Directory or file " + command[i] + " does not exist");
+                status = 1;
+                continue;
+            }
+
+            TreeWalker.Result result = TreeWalker.delete(target);
+            if (result.errorCount > 0) {
+                for (String error : result.errors) {
+                    out.println("Error deleting " + error);
+                }
+                if (result.errorCount > result.errors.size()) {
+                    out.println("... and " + (result.errorCount - result.errors.size()) + " more errors");
+                }
+                status = 1;
             }
-        } else {
-            System.out.println("Error: Directory or file " + directoryName + " does not exist");
         }
 
-        return "";
+        return status;
     }
 
     /**
-     * Gets the history of the shell commands.
-     * @return History of shell commands
+     * Removes a directory (or a file) given a string input
+     * @param directoryName Name of directory (or file) to be removed
+     * @param out Where errors are written
+     * @return 0, or 1 if the directory couldn't be removed
+     * @throws IOException If an error couldn't be written
      */
-    public static String history() {
-        StringBuilder returnStringSB = new StringBuilder();
-        returnStringSB.append("-- Command History --").append(System.getProperty("line.separator"));
-        for (int i = 0; i < commandHistory.size(); i++) {
-            // 1-based index (not 0-based)
-            returnStringSB.append(i + 1).append(" : ").append(commandHistory.get(i));
-            // don't add line separator for last entry
-            if (i < commandHistory.size() - 1) {
-                returnStringSB.append(System.getProperty("line.separator"));
+    public static int rdir(String directoryName, ByteSink out) throws IOException {
+        File directoryToRemove = new File(System.getProperty("user.dir") + File.separator + directoryName);
+        if (directoryToRemove.exists()) {
+            if (!directoryToRemove.delete()) {
+                out.println("Error deleting " + directoryName + " (directory must be empty)");
+                return 1;
             }
+        } else {
+            out.println("Error: Directory or file " + directoryName + " does not exist");
+            return 1;
         }
 
-        return returnStringSB.toString();
+        return 0;
     }
 
     /**
@@ -421,113 +577,43 @@ public class Shell {
      * future command (to prevent infinite looping).
      *
      * @param commandNumber The command number to execute.
+     * @param out Where the command's output (and any error) goes
+     * @return The exit status of the command, or 1 if it couldn't be found
+     * @throws IOException If the output couldn't be written
      */
-    public static void executeHistoryCommand(String commandNumber) {
+    public static int executeHistoryCommand(String commandNumber, ByteSink out) throws IOException {
         try {
             int number = Integer.parseInt(commandNumber);
 
             // don't allow history command to refer to itself
-            if (number == commandHistory.size()) {
+            if (number == History.size()) {
                 throw new IndexOutOfBoundsException();
             }
 
-            String commandToExecute = commandHistory.get(number - 1);   // commandNumber input will be 1-based
-            String[] commandsSplitUp = splitCommand(commandToExecute);
-            executeCommand(commandsSplitUp, false);
+            String commandToExecute = History.get(number);   // commandNumber input will be 1-based
+            if (commandToExecute == null) {
+                throw new IndexOutOfBoundsException();
+            }
+            executeCommand(commandToExecute, false, out);
+            return lastExitStatus;
         } catch (NumberFormatException ex) {
-            System.out.println("Error: " + commandNumber + " is not int");
+            out.println("Error: " + commandNumber + " is not int");
         } catch (IndexOutOfBoundsException ex) {
-            System.out.println("Error: " + commandNumber + " outside of history bounds");
+            out.println("Error: " + commandNumber + " outside of history bounds");
             // if the command is out of bounds, remove it from command history
             // this will prevent infinite looping
-            commandHistory.remove(commandHistory.size() - 1);
+            History.removeLast();
         }
-    }
 
-    /**
-     * Start a process, given zero or more arguments for that process.
-     * @param willWePipe Boolean determining whether this is the first in a set of two piped commands.
-     * @param areWePiping Boolean determining whether this is the second in a set of two piped commands.
-     * @param pipeString The output of the first piped command, inputted to this function as a string.
-     * @param command The command to run (including arguments).
-     * @return The string output of that process.
-     */
-    public static String runProcess(boolean willWePipe, boolean areWePiping, String pipeString, String... command) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-
-            // this will let the child process inherit the shell's IO
-            // we always want to redirect the error stream
-            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-            // if this is first process in pipe, we don't want our output to be STDOUT
-            // return the string that the process outputted instead
-            // otherwise, redirect the process's output to our screen
-            if (!willWePipe) {
-                pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-            }
-            // if this is second process in pipe, we don't want the process's input to be our STDIN
-            // otherwise, redirect the process's input to our input
-            if (!areWePiping) {
-                pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
-            }
-
-            // set the correct directory for the process
-            pb.directory(new File(System.getProperty("user.dir")));
-
-            // time the process
-            long startTimeMillis = System.currentTimeMillis();
-            Process process = pb.start();
-            if (areWePiping) {
-                OutputStream os = process.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os));
-                writer.write(pipeString);
-                writer.flush();
-                writer.close();
-            }
-            process.waitFor();
-
-            long elapsedTimeMillis = System.currentTimeMillis() - startTimeMillis;
-            // convert elapsed time in millis to seconds
-            timeSpentInChildProcesses += (elapsedTimeMillis) / 1000.0d;
-
-            // we only need to return a string if this is the first process in a pipe
-            // if it's not the first process in a pipe, just return an empty string instead
-            // we already printed the process output to screen, we don't want to double print it
-            if (willWePipe) {
-                // read the output of that process and store it into a String
-                // Source: user Reimeus, https://stackoverflow.com/a/16714180 {
-                BufferedReader reader =
-                        new BufferedReader(new InputStreamReader(process.getInputStream()));
-                StringBuilder builder = new StringBuilder();
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    builder.append(line);
-                    // use line.separator due to line ending differences on Windows and Linux
-                    builder.append(System.getProperty("line.separator"));
-                }
-                // } back to my code
-
-                // return the output of that process
-                return builder.toString();
-            } else {
-                return "";
-            }
-        } catch (IOException e) {
-            StringBuilder fullTextOfCommand = new StringBuilder();
-            for (String s : command) {
-                fullTextOfCommand.append(s).append(" ");
-            }
-            System.out.println("Invalid command: " + fullTextOfCommand);
-        } catch (InterruptedException e) {
-            System.out.println("Command forcefully exited");
-        }
-
-        // if failed, just return an empty string
-        return "";
+        return 1;
     }
 
     /**
      * Split the user command by spaces, but preserving them when inside double-quotes.
+     *
+     * Commands are now read by Lexer and Parser instead, which also understand escapes and
+     * operators. This is kept so the two can be compared (see TokenizerBenchmark).
+     *
      * Code Adapted from: https://stackoverflow.com/questions/366202/regex-for-splitting-a-string-using-space-when-not-surrounded-by-single-or-double
      */
     public static String[] splitCommand(String command) {
@@ -0,0 +1,384 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Measures where the shell spends its time, for the stats builtin.
+ *
+ * Each phase of running a command is timed separately: parsing the line, dispatching it
+ * (the shell's own work getting every stage going), spawning each process, each process
+ * running, copying bytes between processes, and waiting for a pipeline to finish. Comparing
+ * them shows whether a slow command is slow because of fork/exec, because of I/O, or
+ * because the program itself is slow.
+ *
+ * Every measurement is also sent to Java Flight Recorder as a "shell.Phase" event (when a
+ * recording is running), and to a trace file of JSON lines when $SHELL_TRACE names one or
+ * "stats --trace file" is used.
+ *
+ * Only counts, totals, the maximum and a histogram of powers of two are kept per phase, so
+ * the memory used stays the same however long the shell runs.
+ */
+public class ShellMetrics {
+    /**
+     * The phases of running a command that are measured.
+     */
+    public enum Phase {
+        PARSE("parse"),
+        DISPATCH("dispatch"),
+        BUILTIN("builtin"),
+        SPAWN("spawn"),
+        CHILD("child"),
+        PIPE("pipe"),
+        WAIT("wait");
+
+        /**
+         * The name of the phase, as shown by stats and written to the trace.
+         */
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * What has been measured for a single phase.
+     */
+    private static final class Totals {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * How many measurements took less than 2^(i+1) nanoseconds (and at least 2^i).
+         */
+        final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void add(long duration, long byteCount) {
+            count.increment();
+            nanos.add(duration);
+            bytes.add(byteCount);
+            maxNanos.accumulateAndGet(duration, Math::max);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, duration)));
+        }
+
+        /**
+         * Estimates a percentile from the histogram.
+         * @param percent The percentile, from 1 to 100
+         * @return The upper end of the bucket the percentile falls in, in nanoseconds
+         */
+        long percentile(int percent) {
+            long total = count.sum();
+            long rank = Math.max(1, (total * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    // the bucket only says how big the value was to within a factor of two
+                    return Math.min(maxNanos.get(), i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+
+    /**
+     * What has been measured for each phase, indexed by ordinal. The array is never changed
+     * once it's here: stats -r swaps in a new one, so every phase starts again at the same
+     * moment, and a measurement lands wholly before the reset or wholly after it.
+     */
+    private static volatile Totals[] totals = newTotals();
+
+    /**
+     * Makes nothing-measured-yet totals for every phase.
+     * @return The totals, indexed by ordinal
+     */
+    private static Totals[] newTotals() {
+        Totals[] fresh = new Totals[Phase.values().length];
+        for (int i = 0; i < fresh.length; i++) {
+            fresh[i] = new Totals();
+        }
+        return fresh;
+    }
+
+    /**
+     * Whether Java Flight Recorder is part of this JVM.
+     */
+    private static final boolean hasFlightRecorder = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    /**
+     * The trace file being written, or null if there isn't one.
+     */
+    private static volatile BufferedWriter trace;
+
+    /**
+     * Where the trace is being written, or null if there isn't one.
+     */
+    private static Path tracePath;
+
+    static {
+        String name = System.getenv("SHELL_TRACE");
+        if (name != null && !name.isEmpty()) {
+            try {
+                startTrace(Shell.cwd().resolve(name));
+            } catch (IOException e) {
+                System.err.println("Error: cannot write trace " + name);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(ShellMetrics::stopTrace));
+    }
+
+    /**
+     * The JFR event for a measurement. It lives in its own class so a JVM without JFR never
+     * loads it, and the event itself is only loaded once a recording has been started (by
+     * -XX:StartFlightRecording or jcmd), since loading it starts up the whole of JFR.
+     */
+    private static final class Flight {
+        @Name("shell.Phase")
+        @Label("Shell Phase")
+        @Category("Shell")
+        @Description("A measured phase of running a command in the shell")
+        static final class PhaseEvent extends Event {
+            @Label("Phase")
+            String phase;
+
+            @Label("Detail")
+            @Description("The command (or line) the phase belongs to")
+            String detail;
+
+            @Label("Duration")
+            @Timespan(Timespan.NANOSECONDS)
+            long nanos;
+
+            @Label("Bytes")
+            @DataAmount
+            long bytes;
+        }
+
+        static void commit(Phase phase, long nanos, String detail, long bytes) {
+            if (!FlightRecorder.isInitialized()) {
+                return;
+            }
+            PhaseEvent event = new PhaseEvent();
+            if (event.shouldCommit()) {
+                event.phase = phase.label;
+                event.detail = detail;
+                event.nanos = nanos;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Records a phase that has just finished.
+     * @param phase The phase
+     * @param startNanos When it started, from System.nanoTime()
+     * @param detail The command (or line) it belongs to
+     */
+    public static void record(Phase phase, long startNanos, String detail) {
+        record(phase, System.nanoTime() - startNanos, detail, 0);
+    }
+
+    /**
+     * Records a phase that has finished.
+     * @param phase The phase
+     * @param nanos How long it took
+     * @param detail The command (or line) it belongs to
+     * @param bytes How many bytes it moved, if it moves any
+     */
+    public static void record(Phase phase, long nanos, String detail, long bytes) {
+        totals[phase.ordinal()].add(nanos, bytes);
+        if (hasFlightRecorder) {
+            Flight.commit(phase, nanos, detail, bytes);
+        }
+        if (trace != null) {
+            writeTrace(phase, nanos, detail, bytes);
+        }
+    }
+
+    /**
+     * Makes sure everything traced so far has reached the trace file, which is done after
+     * every command rather than after every line of the trace.
+     */
+    public static synchronized void flushTrace() {
+        if (trace != null) {
+            try {
+                trace.flush();
+            } catch (IOException e) {
+                // the next write will find out too, and give up on the trace
+            }
+        }
+    }
+
+    /**
+     * Runs the stats builtin.
+     *
+     * With no arguments, a line is shown for every phase: how many times it happened, how
+     * long it took in total, on average, at the 50th and 99th percentiles and at most (the
+     * percentiles are only accurate to within a factor of two). -r starts counting again,
+     * and --trace file (or --trace off) starts (or stops) writing the trace file.
+     *
+     * @param command The stats command (including options)
+     * @param out Where the statistics should be written
+     * @return 0, 1 if the trace file couldn't be opened, or 2 if the options weren't understood
+     * @throws IOException If the statistics couldn't be written
+     */
+    public static int stats(String[] command, ByteSink out) throws IOException {
+        if (command.length == 2 && command[1].equals("-r")) {
+            totals = newTotals();
+            return 0;
+        } else if (command.length == 3 && command[1].equals("--trace")) {
+            stopTrace();
+            if (command[2].equals("off")) {
+                return 0;
+            }
+            try {
+                startTrace(Shell.cwd().resolve(command[2]));
+            } catch (IOException e) {
+                out.println("stats: cannot write trace " + command[2]);
+                return 1;
+            }
+            return 0;
+        } else if (command.length > 1) {
+            out.println("stats: usage: stats [-r | --trace file | --trace off]");
+            return 2;
+        }
+
+        // every line comes from the same totals, even if they're reset meanwhile
+        Totals[] current = totals;
+        out.println(String.format("%-10s %8s %10s %10s %10s %10s %10s", "phase", "count", "total", "mean", "p50", "p99", "max"));
+        for (Phase phase : Phase.values()) {
+            Totals t = current[phase.ordinal()];
+            long count = t.count.sum();
+            if (count == 0) {
+                out.println(String.format("%-10s %8d", phase.label, 0));
+                continue;
+            }
+            long nanos = t.nanos.sum();
+            out.println(String.format("%-10s %8d %10s %10s %10s %10s %10s", phase.label, count, duration(nanos),
+                    duration(nanos / count), duration(t.percentile(50)), duration(t.percentile(99)), duration(t.maxNanos.get())));
+        }
+
+        Totals pipe = current[Phase.PIPE.ordinal()];
+        long bytes = pipe.bytes.sum();
+        if (bytes > 0) {
+            double seconds = pipe.nanos.sum() / 1e9;
+            out.println(String.format("Piped %d bytes at %.1f MB/s", bytes, seconds > 0 ? bytes / seconds / 1e6 : 0));
+        }
+        synchronized (ShellMetrics.class) {
+            if (tracePath != null) {
+                out.println("Tracing to " + tracePath);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Formats a duration with a unit that suits its size, such as 850ns, 12.3us or 4.56ms.
+     * @param nanos The duration in nanoseconds
+     * @return The formatted duration
+     */
+    private static String duration(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        } else if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < 1_000_000_000) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    /**
+     * Starts writing the trace file, adding to the end of it if it already exists.
+     * @param path The trace file
+     * @throws IOException If the file couldn't be opened
+     */
+    private static synchronized void startTrace(Path path) throws IOException {
+        trace = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        tracePath = path;
+    }
+
+    /**
+     * Stops writing the trace file, if one is being written.
+     */
+    private static synchronized void stopTrace() {
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException e) {
+                // whatever didn't make it is lost either way
+            }
+            trace = null;
+            tracePath = null;
+        }
+    }
+
+    /**
+     * Writes a measurement to the trace file as a line of JSON.
+     * @param phase The phase
+     * @param nanos How long it took
+     * @param detail The command (or line) it belongs to
+     * @param bytes How many bytes it moved
+     */
+    private static synchronized void writeTrace(Phase phase, long nanos, String detail, long bytes) {
+        if (trace == null) {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder(96 + detail.length());
+        line.append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"phase\":\"").append(phase.label)
+                .append("\",\"nanos\":").append(nanos)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"thread\":\"");
+        escape(Thread.currentThread().getName(), line);
+        line.append("\",\"detail\":\"");
+        escape(detail, line);
+        line.append("\"}\n");
+
+        try {
+            trace.write(line.toString());
+        } catch (IOException e) {
+            System.err.println("Error: cannot write trace " + tracePath + ", tracing stopped");
+            stopTrace();
+        }
+    }
+
+    /**
+     * Adds text to a JSON string, escaping whatever JSON needs escaped.
+     * @param text The text
+     * @param json Where the escaped text goes
+     */
+    private static void escape(String text, StringBuilder json) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Thrown when a command line can't be understood, such as an unterminated quote or a
+ * pipe with nothing after it.
+ */
+public class SyntaxException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception.
+     * @param message What was wrong with the command line
+     */
+    public SyntaxException(String message) {
+        super(message);
+    }
+}
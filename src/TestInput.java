@@ -1,3 +1,8 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Scanner;
 
 /**
@@ -5,15 +10,35 @@ import java.util.Scanner;
  * then echoes that back to the user. When piped with
  * another program, it will instead read in the first
  * line of that program's output.
+ *
+ * Given a number of bytes, it reads up to that many bytes
+ * (stopping early at the end of input) and says how many
+ * it read, to measure how quickly the shell moves data down a pipe.
  * @author Jenna Knudsen
  */
 public class TestInput {
 
     /**
      * Main function of this program.
-     * @param args Command line arguments (unused)
+     * @param args Command line arguments (optionally, how many bytes to read)
+     * @throws IOException If the input couldn't be read
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            long wanted = Long.parseLong(args[0]);
+            long read = 0;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try (FileChannel in = new FileInputStream(FileDescriptor.in).getChannel()) {
+                int count;
+                while (read < wanted && (count = in.read(buffer)) != -1) {
+                    read += count;
+                    buffer.clear();
+                }
+            }
+            System.out.println("Read " + read + " bytes");
+            return;
+        }
+
         System.out.println("Now inside TestInput program!");
         Scanner scanner = new Scanner(System.in);
         if (scanner.hasNext()) {
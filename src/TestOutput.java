@@ -1,14 +1,45 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 /**
  * Test class that I made that writes a single line to STDOUT.
+ *
+ * Given a number of bytes, it writes that many bytes of lines of text instead, as fast as
+ * it can, to measure how quickly the shell moves data down a pipe.
  * @author Jenna Knudsen
  */
 public class TestOutput {
 
     /**
      * The main function of this program, it writes a single line to STDOUT.
-     * @param args Command line arguments (unused)
+     * @param args Command line arguments (optionally, how many bytes to write)
+     * @throws IOException If the output couldn't be written
      */
-    public static void main(String[] args) {
-        System.out.println("Now inside TestOutput program!");
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Now inside TestOutput program!");
+            return;
+        }
+
+        long remaining = Long.parseLong(args[0]);
+
+        // one buffer of 64-byte lines, written over and over
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) (buffer.position() % 64 == 63 ? '\n' : 'a' + buffer.position() % 26));
+        }
+
+        try (FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel()) {
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                while (buffer.hasRemaining()) {
+                    remaining -= out.write(buffer);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks directory trees in parallel, for sizing them up (du) and deleting them (rdir -r).
+ *
+ * Every directory is its own fork-join task, so sibling directories are read at the same
+ * time and idle workers steal subtrees from busy ones. Symbolic links are never followed:
+ * a link is counted (or deleted) as the link itself, so a walk can't escape the tree or
+ * loop forever.
+ *
+ * Long walks report how far they've got on standard error, when there's a user to see it.
+ */
+public class TreeWalker {
+    /**
+     * How long a walk runs before it starts reporting progress, in milliseconds.
+     */
+    private static final long PROGRESS_DELAY = 1000;
+
+    /**
+     * How often progress is reported, in milliseconds.
+     */
+    private static final long PROGRESS_INTERVAL = 250;
+
+    /**
+     * How many errors are kept for reporting. Any beyond this are only counted.
+     */
+    private static final int MAX_ERRORS = 10;
+
+    /**
+     * The pool every walk runs on, made the first time it's needed.
+     */
+    private static final class Pool {
+        /**
+         * One worker per core. Walking is mostly waiting on the file system, so the invoking
+         * thread joins in too.
+         */
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("tree-walker-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * What a walk found (or deleted).
+     */
+    public static final class Totals {
+        /**
+         * The number of bytes in every file (links count as the size of the link).
+         */
+        public long bytes;
+
+        /**
+         * The number of files (and links).
+         */
+        public long files;
+
+        /**
+         * The number of directories, including the one the walk started at.
+         */
+        public long directories;
+
+        /**
+         * Adds the totals of a subtree to these.
+         * @param other The totals of the subtree
+         */
+        void add(Totals other) {
+            bytes += other.bytes;
+            files += other.files;
+            directories += other.directories;
+        }
+    }
+
+    /**
+     * The state shared by every task of a single walk.
+     */
+    private static final class Walk {
+        /**
+         * Whether entries are deleted once they've been counted.
+         */
+        final boolean delete;
+
+        /**
+         * The number of entries handled so far, for progress reports.
+         */
+        final AtomicLong done = new AtomicLong();
+
+        /**
+         * The first few things that went wrong.
+         */
+        final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+        /**
+         * How many things went wrong in total.
+         */
+        final AtomicLong errorCount = new AtomicLong();
+
+        Walk(boolean delete) {
+            this.delete = delete;
+        }
+
+        /**
+         * Records something that went wrong.
+         * @param path The entry it went wrong for
+         * @param e What went wrong
+         */
+        void error(Path path, IOException e) {
+            if (errorCount.incrementAndGet() <= MAX_ERRORS) {
+                errors.add(path + ": " + (e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Counts (and maybe deletes) everything in a single directory, forking a task for each
+     * directory inside it.
+     */
+    private static final class DirectoryTask extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+
+        final Walk walk;
+        final Path directory;
+
+        DirectoryTask(Walk walk, Path directory) {
+            this.walk = walk;
+            this.directory = directory;
+        }
+
+        @Override
+        protected Totals compute() {
+            Totals totals = new Totals();
+            totals.directories = 1;
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        walk.error(entry, e);
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        DirectoryTask task = new DirectoryTask(walk, entry);
+                        task.fork();
+                        subdirectories.add(task);
+                        continue;
+                    }
+
+                    // a file, a link or anything else that isn't a directory
+                    if (walk.delete && !deleteEntry(entry)) {
+                        continue;
+                    }
+                    totals.files++;
+                    totals.bytes += attributes.size();
+                    walk.done.incrementAndGet();
+                }
+            } catch (IOException e) {
+                walk.error(directory, e);
+            } catch (DirectoryIteratorException e) {
+                walk.error(directory, e.getCause());
+            }
+
+            for (DirectoryTask task : subdirectories) {
+                totals.add(task.join());
+            }
+
+            // only now is the directory empty (if nothing went wrong inside it)
+            if (walk.delete && !deleteEntry(directory)) {
+                totals.directories--;
+            }
+            walk.done.incrementAndGet();
+            return totals;
+        }
+
+        /**
+         * Deletes a single entry, recording it if that fails.
+         * @param entry The entry to delete
+         * @return True if it was deleted
+         */
+        private boolean deleteEntry(Path entry) {
+            try {
+                Files.delete(entry);
+                return true;
+            } catch (IOException e) {
+                walk.error(entry, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The outcome of a walk.
+     */
+    public static final class Result {
+        /**
+         * What was found (or deleted).
+         */
+        public final Totals totals;
+
+        /**
+         * The first few things that went wrong, if any.
+         */
+        public final List<String> errors;
+
+        /**
+         * How many things went wrong in total.
+         */
+        public final long errorCount;
+
+        Result(Totals totals, List<String> errors, long errorCount) {
+            this.totals = totals;
+            this.errors = errors;
+            this.errorCount = errorCount;
+        }
+    }
+
+    /**
+     * Runs the du builtin, writing the total size of each tree (the current directory by
+     * default) with the size in bytes first, or in K, M and G with -h.
+     * @param command The du command (including -h and paths)
+     * @param out Where the sizes and any errors should be written
+     * @return 0, or 1 if anything couldn't be read
+     * @throws IOException If the sizes couldn't be written
+     */
+    public static int du(String[] command, ByteSink out) throws IOException {
+        boolean human = command.length > 1 && command[1].equals("-h");
+        List<String> names = new ArrayList<>(Arrays.asList(command).subList(human ? 2 : 1, command.length));
+        if (names.isEmpty()) {
+            names.add(".");
+        }
+
+        int status = 0;
+        Path here = Shell.cwd();
+        for (String name : names) {
+            Result result = size(here.resolve(name));
+            for (String error : result.errors) {
+                out.println("du: " + error);
+            }
+            if (result.errorCount > 0) {
+                status = 1;
+                if (!Files.exists(here.resolve(name), LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+            }
+            String size = human ? humanReadable(result.totals.bytes) : Long.toString(result.totals.bytes);
+            out.print(size).print("\t").println(name);
+        }
+
+        return status;
+    }
+
+    /**
+     * Formats a number of bytes the way du -h does, such as 512, 4.0K or 13M.
+     * @param bytes The number of bytes
+     * @return The formatted size
+     */
+    private static String humanReadable(long bytes) {
+        String units = "KMGTPE";
+        double size = bytes;
+        int unit = -1;
+        while (size >= 1024 && unit < units.length() - 1) {
+            size /= 1024;
+            unit++;
+        }
+        if (unit < 0) {
+            return Long.toString(bytes);
+        }
+        return (size < 10 ? String.format("%.1f", size) : Long.toString(Math.round(size))) + units.charAt(unit);
+    }
+
+    /**
+     * Adds up the sizes of everything in a tree, without following links.
+     * @param root The directory (or file) to size up
+     * @return What was found
+     */
+    public static Result size(Path root) {
+        return walk(root, false, "Sizing");
+    }
+
+    /**
+     * Deletes a tree, without following links (a link to a directory is removed, not emptied).
+     * @param root The directory (or file) to delete
+     * @return What was deleted
+     */
+    public static Result delete(Path root) {
+        return walk(root, true, "Deleting");
+    }
+
+    /**
+     * Runs a walk on the pool, reporting progress while it goes.
+     * @param root Where the walk starts
+     * @param delete Whether to delete everything
+     * @param verb What the walk is doing, for progress reports
+     * @return The outcome of the walk
+     */
+    private static Result walk(Path root, boolean delete, String verb) {
+        Walk walk = new Walk(delete);
+        Totals totals;
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            walk.error(root, e);
+            return new Result(new Totals(), new ArrayList<>(walk.errors), walk.errorCount.get());
+        }
+
+        if (!attributes.isDirectory()) {
+            totals = new Totals();
+            try {
+                if (delete) {
+                    Files.delete(root);
+                }
+                totals.files = 1;
+                totals.bytes = attributes.size();
+            } catch (IOException e) {
+                walk.error(root, e);
+            }
+        } else {
+            Thread progress = startProgress(walk, verb);
+            try {
+                totals = Pool.POOL.invoke(new DirectoryTask(walk, root));
+            } finally {
+                stopProgress(progress);
+            }
+        }
+
+        return new Result(totals, new ArrayList<>(walk.errors), walk.errorCount.get());
+    }
+
+    /**
+     * Starts reporting how many entries a walk has handled, once it's been running a while.
+     * @param walk The walk to report on
+     * @param verb What the walk is doing
+     * @return The thread doing the reporting (to interrupt when the walk is done), or null
+     */
+    private static Thread startProgress(Walk walk, String verb) {
+        if (!Shell.interactive) {
+            // nobody is watching a script, and the output would only get in the way
+            return null;
+        }
+
+        Thread thread = new Thread(() -> {
+            String line = "";
+            try {
+                Thread.sleep(PROGRESS_DELAY);
+                while (true) {
+                    line = verb + "... " + walk.done.get() + " entries";
+                    System.err.print("\r" + line);
+                    Thread.sleep(PROGRESS_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                if (!line.isEmpty()) {
+                    // blank out the progress line so the real output starts at the left
+                    System.err.print("\r" + " ".repeat(line.length()) + "\r");
+                }
+            }
+        }, "tree-walker-progress");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stops reporting progress, waiting for the progress line to be cleared.
+     * @param thread The thread doing the reporting, or null if there isn't one
+     */
+    private static void stopProgress(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
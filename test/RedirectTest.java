@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs the shell on command lines with redirections, and checks where the output and errors
+ * of builtins end up.
+ *
+ * Each command line runs in a shell of its own (started with -c in a new directory), so
+ * nothing is left behind in this JVM.
+ */
+public class RedirectTest {
+    private static final String NEWLINE = System.lineSeparator();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void builtinErrorGoesToOutputFile() throws Exception {
+        assertEquals(1, shell("cd nonexist > out.txt").status);
+        assertEquals("Error: directory nonexist does not exist" + NEWLINE, read("out.txt"));
+    }
+
+    @Test
+    public void builtinErrorSkipsErrorFile() throws Exception {
+        // builtins report errors on their output, so 2> only creates the file
+        assertEquals(1, shell("rdir nothere 2> err.txt > out.txt").status);
+        assertEquals("Error: Directory or file nothere does not exist" + NEWLINE, read("out.txt"));
+        assertEquals("", read("err.txt"));
+    }
+
+    @Test
+    public void builtinErrorGoesDownPipe() throws Exception {
+        Files.createFile(directory.resolve("f.txt"));
+        Result result = shell("mdir f.txt | wc -l");
+        assertEquals(0, result.status);
+        assertEquals("1", result.output.trim());
+    }
+
+    @Test
+    public void builtinOutputAppendsToFile() throws Exception {
+        assertEquals(0, shell("here > here.txt; here >> here.txt").status);
+        String here = directory.toRealPath().toString();
+        assertEquals(here + NEWLINE + here + NEWLINE, read("here.txt"));
+    }
+
+    @Test
+    public void missingInputFileRunsNothing() throws Exception {
+        Result result = shell("wc -l < missing.txt > out.txt");
+        assertEquals(1, result.status);
+        assertTrue(result.output.contains("cannot open"), result.output);
+        // every redirection is opened first, and nothing happens if one of them fails
+        assertTrue(Files.notExists(directory.resolve("out.txt")));
+    }
+
+    @Test
+    public void errorsFollowOutputIntoFile() throws Exception {
+        Path missing = directory.resolve("missing");
+        Result result = shell("ls " + missing + " > out.txt 2>&1");
+        assertTrue(result.status != 0, result.output);
+        // the & is part of the redirection, so nothing was started in the background
+        assertEquals("", result.output);
+        assertTrue(read("out.txt").contains("missing"), read("out.txt"));
+    }
+
+    @Test
+    public void otherStreamCopiesAreRejected() throws Exception {
+        Result result = shell("ls >&2");
+        assertEquals(2, result.status);
+        assertTrue(result.output.contains("unsupported redirection >&2"), result.output);
+    }
+
+    /**
+     * What a shell printed, and the status it exited with.
+     */
+    private static final class Result {
+        final int status;
+        final String output;
+
+        Result(int status, String output) {
+            this.status = status;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Runs a command line in a new shell, in the test's directory.
+     * @param line The command line
+     * @return What the shell printed and its exit status
+     */
+    private Result shell(String line) throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Shell", "-c", line)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .start();
+        // nothing is typed into it
+        process.getOutputStream().close();
+        String output = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset());
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new IllegalStateException("the shell didn't finish: " + line);
+        }
+        return new Result(process.exitValue(), output);
+    }
+
+    private String read(String name) throws IOException {
+        return new String(Files.readAllBytes(directory.resolve(name)), Charset.defaultCharset());
+    }
+}